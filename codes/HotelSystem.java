@@ -1,10 +1,21 @@
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
 import java.util.List;
 import java.util.*;
 import java.io.*;
+import java.net.*;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 // --------------------------------------------------------------------------------
 // GUIクラス (チェックアウト処理を修正)
@@ -14,44 +25,57 @@ class HotelGUI extends JFrame {
     private RoomReservationProcess proc;
     private HotelReservationScreen reservationUI;
     private RoomManagementScreen roomUI;
+    private NightAuditProcess nightAudit;
+    private OccupancyAnalytics analytics;
 
     private JButton reserveButton;
     private JButton checkInButton;
     private JButton cancelButton;
+    private JButton modifyButton;
+    private JButton listButton;
+    private JButton analyticsButton;
     
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd");
 
 
     public HotelGUI() {
-        proc = new RoomReservationProcess();
-        proc.addRoom(new Room(101, new StandardRoom()));
-        proc.addRoom(new Room(102, new StandardRoom()));
-        proc.addRoom(new Room(201, new SuiteRoom()));
-        loadReservationsFromFile(proc);
+        proc = HotelSystem.createProcess(RoomReservationProcess.RESERVATION_FILE);
 
         reservationUI = new HotelReservationScreen(proc);
-        roomUI = new RoomManagementScreen(new CheckInProcess(), new CheckOutProcess());
+        roomUI = new RoomManagementScreen(new CheckInProcess(proc), new CheckOutProcess(proc));
+        nightAudit = new NightAuditProcess(proc);
+        nightAudit.start();
+        analytics = OccupancyAnalytics.attach(proc);
 
         setTitle("ホテル管理システム");
-        setSize(400, 200);
+        setSize(400, 380);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
 
         JPanel panel = new JPanel();
-        panel.setLayout(new GridLayout(3, 1, 10, 10));
+        panel.setLayout(new GridLayout(6, 1, 10, 10));
         panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
         reserveButton = new JButton("部屋を予約する");
         checkInButton = new JButton("チェックイン / チェックアウトする");
         cancelButton = new JButton("予約をキャンセルする");
+        modifyButton = new JButton("予約を変更する");
+        listButton = new JButton("予約一覧を表示する");
+        analyticsButton = new JButton("稼働率・売上を表示する");
 
         reserveButton.addActionListener(e -> handleReservation());
         checkInButton.addActionListener(e -> handleCheckInCheckOut());
         cancelButton.addActionListener(e -> handleCancellation());
+        modifyButton.addActionListener(e -> handleModification());
+        listButton.addActionListener(e -> handleReservationList());
+        analyticsButton.addActionListener(e -> handleAnalytics());
 
         panel.add(reserveButton);
         panel.add(checkInButton);
         panel.add(cancelButton);
+        panel.add(modifyButton);
+        panel.add(listButton);
+        panel.add(analyticsButton);
 
         add(panel);
         setVisible(true);
@@ -81,19 +105,37 @@ class HotelGUI extends JFrame {
                 String roomTypeName = (String) roomTypeCombo.getSelectedItem();
                 String password = new String(passwordField.getPassword());
 
+                if (!checkInDate.before(checkOutDate)) {
+                    JOptionPane.showMessageDialog(this, "チェックアウト日はチェックイン日より後の日付にしてください。", "入力エラー", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
                 if (password.isEmpty() || password.contains(",")) {
                     JOptionPane.showMessageDialog(this, "パスワードは必須で、カンマは含められません。", "入力エラー", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
                 
                 DateRange stay = new DateRange(checkInDate, checkOutDate);
-                Room selectedRoom = proc.assignRoom(roomTypeName, stay);
+                RoomHold hold = reservationUI.selectRoom(roomTypeName, stay);
+                if (hold == null) {
+                    JOptionPane.showMessageDialog(this, "申し訳ありません、その日程ではご希望の部屋に空きがありません。", "空室なし", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
 
-                if (selectedRoom != null) {
-                    Reservation res = reservationUI.createReservation(selectedRoom, stay, password);
+                // 確認している間は部屋を仮押さえしておき、他の利用者に取られないようにする
+                String message = "部屋 " + hold.getRoom().getRoomNumber() + " (" + roomTypeName + ") を仮押さえしました。\n"
+                        + "料金は ¥" + (hold.getRoom().getType().getDailyRate() * stay.getNights()) + " です。\n"
+                        + (RoomReservationProcess.HOLD_TTL_MILLIS / 60000) + "分以内に確定してください。予約を確定しますか？";
+                int choice = JOptionPane.showConfirmDialog(this, message, "予約確認", JOptionPane.YES_NO_OPTION);
+                if (choice != JOptionPane.YES_OPTION) {
+                    reservationUI.releaseHold(hold);
+                    return;
+                }
+
+                Reservation res = reservationUI.createReservation(hold, password);
+                if (res != null) {
                     JOptionPane.showMessageDialog(this, "予約が完了しました。\n予約番号: " + res.getId(), "予約完了", JOptionPane.INFORMATION_MESSAGE);
                 } else {
-                    JOptionPane.showMessageDialog(this, "申し訳ありません、その日程ではご希望の部屋に空きがありません。", "空室なし", JOptionPane.WARNING_MESSAGE);
+                    JOptionPane.showMessageDialog(this, "仮押さえの期限が切れたか、予約情報を保存できなかったため、予約できませんでした。もう一度お試しください。", "期限切れ", JOptionPane.WARNING_MESSAGE);
                 }
             } catch (ParseException ex) {
                 JOptionPane.showMessageDialog(this, "日付の形式が正しくありません (yyyy/MM/dd)。", "入力エラー", JOptionPane.ERROR_MESSAGE);
@@ -116,20 +158,21 @@ class HotelGUI extends JFrame {
         Reservation res = proc.getReservation(reservationId.trim());
 
         if (res != null) {
-            Room targetRoom = res.getRoom();
-
-            if (targetRoom.isInUse()) {
+            if (res.getStatus() == ReservationStatus.CHECKED_OUT || res.getStatus() == ReservationStatus.NO_SHOW) {
+                JOptionPane.showMessageDialog(this, "この予約はすでに" + res.getStatus().getLabel() + "です。", "エラー", JOptionPane.ERROR_MESSAGE);
+            } else if (res.getStatus() == ReservationStatus.CHECKED_IN) {
                 // --- 【重要】チェックアウト時の処理を修正 ---
                 int charge = res.getCharge();
                 String message = "この予約はチェックイン済みです。\nご請求額は ¥" + charge + " です。\nチェックアウトを完了しますか？";
                 
                 int choice = JOptionPane.showConfirmDialog(this, message, "チェックアウト確認", JOptionPane.YES_NO_OPTION);
                 if (choice == JOptionPane.YES_OPTION) {
-                    // 1. 部屋の状態を更新
-                    roomUI.doCheckOut(res);
-                    // 2. 予約情報をシステムとファイルから削除
-                    proc.deleteReservation(res.getId());
-                    // 3. 完了メッセージを表示
+                    // 1. 部屋の状態を更新（予約情報は夜間監査で売上に計上してからアーカイブに移す）
+                    if (!roomUI.doCheckOut(res)) {
+                        JOptionPane.showMessageDialog(this, "予約情報を保存できなかったため、チェックアウトできませんでした。", "エラー", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    // 2. 完了メッセージを表示
                     JOptionPane.showMessageDialog(this, "チェックアウトが完了しました。", "処理完了", JOptionPane.INFORMATION_MESSAGE);
                 }
             } else {
@@ -137,8 +180,11 @@ class HotelGUI extends JFrame {
                 String message = "予約が見つかりました。\nチェックインしますか？";
                 int choice = JOptionPane.showConfirmDialog(this, message, "チェックイン確認", JOptionPane.YES_NO_OPTION);
                 if (choice == JOptionPane.YES_OPTION) {
-                    roomUI.doCheckIn(res);
-                    JOptionPane.showMessageDialog(this, "チェックインが完了しました。", "処理完了", JOptionPane.INFORMATION_MESSAGE);
+                    if (roomUI.doCheckIn(res)) {
+                        JOptionPane.showMessageDialog(this, "チェックインが完了しました。", "処理完了", JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(this, "予約情報を保存できなかったため、チェックインできませんでした。", "エラー", JOptionPane.ERROR_MESSAGE);
+                    }
                 }
             }
         } else {
@@ -156,31 +202,286 @@ class HotelGUI extends JFrame {
         reservationUI.cancelReservation(reservationId.trim(), password);
     }
 
-    private static void loadReservationsFromFile(RoomReservationProcess proc) {
-        File file = new File("reservations.txt");
-        if (!file.exists()) return;
+    private void handleModification() {
+        JPanel modifyPanel = new JPanel(new GridLayout(5, 2, 5, 5));
+        JTextField idField = new JTextField();
+        JPasswordField passwordField = new JPasswordField();
+        JTextField checkInField = new JTextField();
+        JTextField checkOutField = new JTextField();
+        JComboBox<String> roomTypeCombo = new JComboBox<>(new String[]{"変更しない", "普通の部屋", "スイートルーム"});
+
+        modifyPanel.add(new JLabel("予約番号:"));
+        modifyPanel.add(idField);
+        modifyPanel.add(new JLabel("予約時に設定したパスワード:"));
+        modifyPanel.add(passwordField);
+        modifyPanel.add(new JLabel("新しいチェックイン日 (yyyy/MM/dd):"));
+        modifyPanel.add(checkInField);
+        modifyPanel.add(new JLabel("新しいチェックアウト日 (yyyy/MM/dd):"));
+        modifyPanel.add(checkOutField);
+        modifyPanel.add(new JLabel("部屋タイプ:"));
+        modifyPanel.add(roomTypeCombo);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(",");
-                if(data.length < 6) continue;
-                
-                String id = data[0];
-                int roomNumber = Integer.parseInt(data[1]);
-                Date checkIn = new Date(Long.parseLong(data[2]));
-                Date checkOut = new Date(Long.parseLong(data[3]));
-                String password = data[5];
+        int result = JOptionPane.showConfirmDialog(this, modifyPanel, "予約変更", JOptionPane.OK_CANCEL_OPTION);
+        if (result == JOptionPane.OK_OPTION) {
+            try {
+                Date checkInDate = DATE_FORMAT.parse(checkInField.getText());
+                Date checkOutDate = DATE_FORMAT.parse(checkOutField.getText());
+                if (!checkInDate.before(checkOutDate)) {
+                    JOptionPane.showMessageDialog(this, "チェックアウト日はチェックイン日より後の日付にしてください。", "入力エラー", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                String roomTypeName = roomTypeCombo.getSelectedIndex() == 0 ? null : (String) roomTypeCombo.getSelectedItem();
+                String password = new String(passwordField.getPassword());
+
+                Reservation res = reservationUI.modifyReservation(idField.getText().trim(), password, new DateRange(checkInDate, checkOutDate), roomTypeName);
+                if (res != null) {
+                    JOptionPane.showMessageDialog(this, "予約を変更しました。\n部屋番号: " + res.getRoom().getRoomNumber() + "\n料金: ¥" + res.getCharge(), "変更完了", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, "予約番号かパスワードが違うか、その日程では空きがないため変更できませんでした。\nチェックイン済みの場合は、チェックアウト日だけ変更できます。\n元の予約はそのまま残っています。", "変更失敗", JOptionPane.WARNING_MESSAGE);
+                }
+            } catch (ParseException ex) {
+                JOptionPane.showMessageDialog(this, "日付の形式が正しくありません (yyyy/MM/dd)。", "入力エラー", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    private void handleReservationList() {
+        final String ADMIN_PASSWORD = "password";
+        String enteredAdminPass = JOptionPane.showInputDialog(this, "管理用パスワードを入力してください:");
+
+        if (!ADMIN_PASSWORD.equals(enteredAdminPass)) {
+            JOptionPane.showMessageDialog(this, "管理用パスワードが違います。", "認証エラー", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        JDialog dialog = new JDialog(this, "予約一覧", false);
+        dialog.add(new ReservationListPanel(proc));
+        dialog.setSize(800, 500);
+        dialog.setLocationRelativeTo(this);
+        dialog.setVisible(true);
+    }
+
+    private void handleAnalytics() {
+        final String ADMIN_PASSWORD = "password";
+        String enteredAdminPass = JOptionPane.showInputDialog(this, "管理用パスワードを入力してください:");
+
+        if (!ADMIN_PASSWORD.equals(enteredAdminPass)) {
+            JOptionPane.showMessageDialog(this, "管理用パスワードが違います。", "認証エラー", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        // 初期値は今年の1月1日から1年間
+        Calendar start = Calendar.getInstance();
+        start.set(start.get(Calendar.YEAR), Calendar.JANUARY, 1);
+        Calendar end = (Calendar) start.clone();
+        end.add(Calendar.YEAR, 1);
+        JPanel periodPanel = new JPanel(new GridLayout(2, 2, 5, 5));
+        JTextField fromField = new JTextField(DATE_FORMAT.format(start.getTime()));
+        JTextField toField = new JTextField(DATE_FORMAT.format(end.getTime()));
+        periodPanel.add(new JLabel("開始日 (yyyy/MM/dd):"));
+        periodPanel.add(fromField);
+        periodPanel.add(new JLabel("終了日 (この日は含まない):"));
+        periodPanel.add(toField);
+
+        int result = JOptionPane.showConfirmDialog(this, periodPanel, "集計期間", JOptionPane.OK_CANCEL_OPTION);
+        if (result != JOptionPane.OK_OPTION) return;
+        try {
+            Date from = DATE_FORMAT.parse(fromField.getText().trim());
+            Date to = DATE_FORMAT.parse(toField.getText().trim());
+            if (!from.before(to)) {
+                JOptionPane.showMessageDialog(this, "終了日は開始日より後の日付にしてください。", "入力エラー", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            List<OccupancyStats> stats = analytics.byMonth(from, to);
+            String[][] rows = new String[stats.size()][];
+            for (int i = 0; i < rows.length; i++) rows[i] = stats.get(i).toRow();
+
+            JDialog dialog = new JDialog(this, "稼働率・売上 (月別)", false);
+            dialog.add(new JScrollPane(new JTable(rows, OccupancyStats.COLUMNS)));
+            dialog.setSize(800, 400);
+            dialog.setLocationRelativeTo(this);
+            dialog.setVisible(true);
+        } catch (ParseException ex) {
+            JOptionPane.showMessageDialog(this, "日付の形式が正しくありません (yyyy/MM/dd)。", "入力エラー", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
+
+
+/**
+ * 予約一覧の JTable 用モデル。
+ * 予約をすべて読み込むのではなく、スクロールに合わせて RoomReservationProcess からページ単位で取得する。
+ * 取得はバックグラウンドスレッドで行い、EDT では取得済みの行を追加するだけにする。
+ */
+class ReservationTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final int PAGE_SIZE = 100;
+    private static final String[] COLUMNS = {"予約番号", "部屋番号", "部屋タイプ", "チェックイン", "チェックアウト", "状態", "料金"};
+
+    private final RoomReservationProcess proc;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd");
+    private List<Reservation> rows = new ArrayList<>();
+    private ReservationQuery query;
+    private String cursor;
+    private boolean hasMore;
+    private boolean loading;
+    // 検索条件を変えたときに、古い条件の取得結果を捨てるための世代番号
+    private int generation;
 
-                Room room = proc.getRoomByNumber(roomNumber);
-                if (room != null) {
-                    DateRange range = new DateRange(checkIn, checkOut);
-                    if(new Date().before(checkOut)) room.reserve(range);
-                    proc.createReservationWithId(id, room, range, password);
+    public ReservationTableModel(RoomReservationProcess proc) {
+        this.proc = proc;
+    }
+
+    /**
+     * 検索条件を変えて一覧を空にする。続けて loadNextPage で先頭ページから読み込む。
+     */
+    public void setQuery(ReservationQuery query) {
+        this.query = query;
+        this.rows = new ArrayList<>();
+        this.cursor = null;
+        this.hasMore = true;
+        this.loading = false;
+        this.generation++;
+        fireTableDataChanged();
+    }
+
+    /**
+     * 次のページをバックグラウンドで取得する。取得済みの行が表示されたあとに onLoaded を EDT で呼ぶ。
+     */
+    public void loadNextPage(Runnable onLoaded) {
+        if (loading || !hasMore || query == null) return;
+        loading = true;
+        final int requestGeneration = generation;
+        final ReservationQuery requestQuery = query;
+        final String requestCursor = cursor;
+
+        new SwingWorker<ReservationPage, Void>() {
+            @Override
+            protected ReservationPage doInBackground() {
+                return proc.findReservations(requestQuery, requestCursor, PAGE_SIZE);
+            }
+
+            @Override
+            protected void done() {
+                if (requestGeneration != generation) return;
+                loading = false;
+                try {
+                    ReservationPage page = get();
+                    int first = rows.size();
+                    rows.addAll(page.getItems());
+                    cursor = page.getNextCursor();
+                    hasMore = page.hasMore();
+                    if (rows.size() > first) fireTableRowsInserted(first, rows.size() - 1);
+                    if (onLoaded != null) onLoaded.run();
+                } catch (Exception e) {
+                    hasMore = false;
+                    System.err.println("エラー: 予約一覧の取得に失敗しました。");
+                    e.printStackTrace();
                 }
             }
-        } catch (IOException | NumberFormatException e) {
-            System.err.println("エラー: 予約ファイルの読み込み中にエラーが発生しました。");
+        }.execute();
+    }
+
+    public boolean hasMore() { return hasMore; }
+
+    @Override
+    public int getRowCount() { return rows.size(); }
+
+    @Override
+    public int getColumnCount() { return COLUMNS.length; }
+
+    @Override
+    public String getColumnName(int column) { return COLUMNS[column]; }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        Reservation res = rows.get(rowIndex);
+        switch (columnIndex) {
+            case 0: return res.getId();
+            case 1: return res.getRoom().getRoomNumber();
+            case 2: return res.getRoom().getType().getName();
+            case 3: return dateFormat.format(res.getDateRange().getCheckIn());
+            case 4: return dateFormat.format(res.getDateRange().getCheckOut());
+            case 5: return res.getStatus().getLabel();
+            case 6: return "¥" + res.getCharge();
+            default: return null;
+        }
+    }
+}
+
+/**
+ * 予約一覧画面。検索条件の入力欄と、スクロールで続きを読み込む予約一覧の表を持つ。
+ */
+class ReservationListPanel extends JPanel {
+    private static final long serialVersionUID = 1L;
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd");
+
+    private final ReservationTableModel model;
+    private final JScrollPane scrollPane;
+    private final JTextField fromField = new JTextField(8);
+    private final JTextField toField = new JTextField(8);
+    private final JTextField roomField = new JTextField(4);
+    private final JComboBox<String> statusCombo = new JComboBox<>();
+
+    public ReservationListPanel(RoomReservationProcess proc) {
+        super(new BorderLayout(5, 5));
+        model = new ReservationTableModel(proc);
+
+        statusCombo.addItem("すべて");
+        for (ReservationStatus status : ReservationStatus.values()) {
+            statusCombo.addItem(status.getLabel());
+        }
+
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterPanel.add(new JLabel("期間 (yyyy/MM/dd):"));
+        filterPanel.add(fromField);
+        filterPanel.add(new JLabel("〜"));
+        filterPanel.add(toField);
+        filterPanel.add(new JLabel("部屋番号:"));
+        filterPanel.add(roomField);
+        filterPanel.add(new JLabel("状態:"));
+        filterPanel.add(statusCombo);
+        JButton searchButton = new JButton("検索");
+        searchButton.addActionListener(e -> search());
+        filterPanel.add(searchButton);
+
+        JTable table = new JTable(model);
+        scrollPane = new JScrollPane(table);
+        // 一覧の末尾近くまでスクロールしたら次のページを読み込む
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> fillViewport());
+
+        add(filterPanel, BorderLayout.NORTH);
+        add(scrollPane, BorderLayout.CENTER);
+
+        model.setQuery(new ReservationQuery(null, null, null, null));
+        model.loadNextPage(this::fillViewport);
+    }
+
+    private void search() {
+        try {
+            Date from = fromField.getText().trim().isEmpty() ? null : DATE_FORMAT.parse(fromField.getText().trim());
+            Date to = toField.getText().trim().isEmpty() ? null : DATE_FORMAT.parse(toField.getText().trim());
+            Integer room = roomField.getText().trim().isEmpty() ? null : Integer.valueOf(roomField.getText().trim());
+            int statusIndex = statusCombo.getSelectedIndex();
+            ReservationStatus status = statusIndex <= 0 ? null : ReservationStatus.values()[statusIndex - 1];
+
+            model.setQuery(new ReservationQuery(from, to, room, status));
+            model.loadNextPage(this::fillViewport);
+        } catch (ParseException ex) {
+            JOptionPane.showMessageDialog(this, "日付の形式が正しくありません (yyyy/MM/dd)。", "入力エラー", JOptionPane.ERROR_MESSAGE);
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "部屋番号は数字で入力してください。", "入力エラー", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * 表示領域の末尾まで行が埋まっていなければ、次のページを読み込む
+     */
+    private void fillViewport() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int threshold = bar.getVisibleAmount() / 2;
+        if (model.hasMore() && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - threshold) {
+            model.loadNextPage(this::fillViewport);
         }
     }
 }
@@ -205,6 +506,9 @@ class DateRange {
 
     public Date getCheckIn() { return checkIn; }
     public Date getCheckOut() { return checkOut; }
+
+    // チェックアウトがチェックインより後で、1泊以上ある期間か
+    public boolean isValid() { return checkIn.before(checkOut); }
 }
 
 abstract class RoomType {
@@ -231,65 +535,342 @@ class SuiteRoom extends RoomType {
 class Room {
     private int roomNumber;
     private RoomType type;
-    private List<DateRange> unavailableDates;
+    // 予約で埋まっている期間をチェックイン日時の順に保持する（同じ部屋の期間どうしは重ならない）
+    private NavigableMap<Long, DateRange> unavailableDates;
     private boolean inUse;
 
     public Room(int roomNumber, RoomType type) {
         this.roomNumber = roomNumber;
         this.type = type;
-        this.unavailableDates = new ArrayList<>();
+        this.unavailableDates = new TreeMap<>();
         this.inUse = false;
     }
 
     public boolean isAvailable(DateRange range) {
-        for (DateRange d : unavailableDates) {
-            if (d.getCheckIn().before(range.getCheckOut()) && d.getCheckOut().after(range.getCheckIn())) {
-                return false;
-            }
-        }
-        return true;
+        if (!range.isValid()) return false;
+        // 期間が重ならないので、range のチェックアウトより前に始まる最後の期間だけ調べればよい
+        Map.Entry<Long, DateRange> e = unavailableDates.lowerEntry(range.getCheckOut().getTime());
+        return e == null || !e.getValue().getCheckOut().after(range.getCheckIn());
     }
 
-    public void reserve(DateRange range) { unavailableDates.add(range); }
+    public void reserve(DateRange range) {
+        // 0泊の期間を入れると、同じチェックイン日時の期間を上書きしてしまう
+        if (!range.isValid()) throw new IllegalArgumentException("チェックアウト日がチェックイン日より後ではありません");
+        unavailableDates.put(range.getCheckIn().getTime(), range);
+    }
     public void release(DateRange range) {
-        unavailableDates.removeIf(d -> d.getCheckIn().equals(range.getCheckIn()) && d.getCheckOut().equals(range.getCheckOut()));
+        DateRange d = unavailableDates.get(range.getCheckIn().getTime());
+        if (d != null && d.getCheckOut().equals(range.getCheckOut())) {
+            unavailableDates.remove(range.getCheckIn().getTime());
+        }
     }
     public void setInUse(boolean inUse) { this.inUse = inUse; }
     public boolean isInUse() { return inUse; }
+    public void clearReservations() {
+        unavailableDates.clear();
+        inUse = false;
+    }
 
     public RoomType getType() { return type; }
     public int getRoomNumber() { return roomNumber; }
 }
 
+enum ReservationStatus {
+    RESERVED("予約済み"),
+    CHECKED_IN("チェックイン済み"),
+    CHECKED_OUT("チェックアウト済み"),
+    NO_SHOW("ノーショー");
+
+    private final String label;
+
+    ReservationStatus(String label) { this.label = label; }
+
+    public String getLabel() { return label; }
+}
+
 class Reservation {
     private String id;
     private Room room;
     private DateRange range;
     private String password;
+    private volatile ReservationStatus status = ReservationStatus.RESERVED;
+    private long createdAt;
 
     public Reservation(String id, Room room, DateRange range, String password) {
         this.id = id;
         this.room = room;
         this.range = range;
         this.password = password;
+        this.createdAt = System.currentTimeMillis();
     }
 
     public String getId() { return id; }
     public Room getRoom() { return room; }
     public DateRange getDateRange() { return range; }
     public String getPassword() { return password; }
+    public ReservationStatus getStatus() { return status; }
+    public void setStatus(ReservationStatus status) { this.status = status; }
+    // 予約を受け付けた日時（予約の入り方を分析するために使う）
+    public long getCreatedAt() { return createdAt; }
+    public void setCreatedAt(long createdAt) { this.createdAt = createdAt; }
+    public void moveTo(Room room, DateRange range) {
+        this.room = room;
+        this.range = range;
+    }
     public int getCharge() {
         return room.getType().getDailyRate() * (int)range.getNights();
     }
 }
 
+/**
+ * 予約を確定するまでの間、部屋を一時的に押さえておく仮押さえ。expiresAt を過ぎると自動で解放される。
+ */
+class RoomHold {
+    private final String id;
+    private final Room room;
+    private final DateRange range;
+    private final long expiresAt;
+    // HoldTimerWheel が使う、入っているバケットと残りの周回数
+    int bucket;
+    long rounds;
+
+    public RoomHold(String id, Room room, DateRange range, long expiresAt) {
+        this.id = id;
+        this.room = room;
+        this.range = range;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId() { return id; }
+    public Room getRoom() { return room; }
+    public DateRange getDateRange() { return range; }
+    public long getExpiresAt() { return expiresAt; }
+}
+
+/**
+ * 仮押さえの期限切れを管理するタイマーホイール。
+ * 仮押さえごとにスレッドやタスクを作らず、1本のスレッドが tickMillis ごとにバケットを1つ進め、
+ * そのバケットで期限を迎えた仮押さえだけを取り出す。登録と取り消しはどちらも O(1)。
+ */
+class HoldTimerWheel {
+    private final long tickMillis;
+    private final List<Set<RoomHold>> buckets;
+    private final Consumer<RoomHold> onExpire;
+    private final ScheduledExecutorService ticker;
+    private int cursor = 0;
+
+    public HoldTimerWheel(long tickMillis, int size, Consumer<RoomHold> onExpire) {
+        this.tickMillis = tickMillis;
+        this.onExpire = onExpire;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) buckets.add(new HashSet<>());
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hold-timer-wheel");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void schedule(RoomHold hold) {
+        long ticks = Math.max(1, (hold.getExpiresAt() - System.currentTimeMillis() + tickMillis - 1) / tickMillis);
+        hold.bucket = (int) ((cursor + ticks) % buckets.size());
+        hold.rounds = (ticks - 1) / buckets.size();
+        buckets.get(hold.bucket).add(hold);
+    }
+
+    public synchronized void cancel(RoomHold hold) {
+        buckets.get(hold.bucket).remove(hold);
+    }
+
+    private void tick() {
+        List<RoomHold> expired = new ArrayList<>();
+        synchronized (this) {
+            cursor = (cursor + 1) % buckets.size();
+            Iterator<RoomHold> it = buckets.get(cursor).iterator();
+            while (it.hasNext()) {
+                RoomHold hold = it.next();
+                if (hold.rounds > 0) {
+                    hold.rounds--;
+                } else {
+                    it.remove();
+                    expired.add(hold);
+                }
+            }
+        }
+        // 予約処理のロックを取るので、ホイールのロックを放してから呼ぶ
+        for (RoomHold hold : expired) {
+            try {
+                onExpire.accept(hold);
+            } catch (RuntimeException e) {
+                System.err.println("エラー: 仮押さえの解放中にエラーが発生しました。");
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+/**
+ * 予約一覧の検索条件。null の項目は絞り込みに使わない。
+ * 日付は [from, to) の期間と宿泊日程が重なる予約を対象にする。
+ */
+class ReservationQuery {
+    private Date from;
+    private Date to;
+    private Integer roomNumber;
+    private ReservationStatus status;
+
+    public ReservationQuery(Date from, Date to, Integer roomNumber, ReservationStatus status) {
+        this.from = from;
+        this.to = to;
+        this.roomNumber = roomNumber;
+        this.status = status;
+    }
+
+    public Date getFrom() { return from; }
+    public Date getTo() { return to; }
+    public Integer getRoomNumber() { return roomNumber; }
+    public ReservationStatus getStatus() { return status; }
+
+    public boolean matches(Reservation res) {
+        DateRange range = res.getDateRange();
+        if (from != null && !range.getCheckOut().after(from)) return false;
+        if (to != null && !range.getCheckIn().before(to)) return false;
+        if (roomNumber != null && res.getRoom().getRoomNumber() != roomNumber) return false;
+        return status == null || res.getStatus() == status;
+    }
+}
+
+/**
+ * 予約一覧の1ページ分。nextCursor を次の呼び出しに渡すと続きが取得できる（最後のページでは null）。
+ */
+class ReservationPage {
+    private List<Reservation> items;
+    private String nextCursor;
+
+    public ReservationPage(List<Reservation> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Reservation> getItems() { return items; }
+    public String getNextCursor() { return nextCursor; }
+    public boolean hasMore() { return nextCursor != null; }
+}
+
+/**
+ * ある時点の予約1件の内容を写し取った、変更されない読み取り専用のオブジェクト
+ */
+class ReservationView {
+    private final String id;
+    private final int roomNumber;
+    private final String roomTypeName;
+    private final Date checkIn;
+    private final Date checkOut;
+    private final ReservationStatus status;
+    private final int dailyRate;
+    private final int charge;
+    private final long createdAt;
+
+    public ReservationView(Reservation res) {
+        this.id = res.getId();
+        this.roomNumber = res.getRoom().getRoomNumber();
+        this.roomTypeName = res.getRoom().getType().getName();
+        this.checkIn = res.getDateRange().getCheckIn();
+        this.checkOut = res.getDateRange().getCheckOut();
+        this.status = res.getStatus();
+        this.dailyRate = res.getRoom().getType().getDailyRate();
+        this.charge = res.getCharge();
+        this.createdAt = res.getCreatedAt();
+    }
+
+    public String getId() { return id; }
+    public int getRoomNumber() { return roomNumber; }
+    public String getRoomTypeName() { return roomTypeName; }
+    public Date getCheckIn() { return checkIn; }
+    public Date getCheckOut() { return checkOut; }
+    public ReservationStatus getStatus() { return status; }
+    public int getDailyRate() { return dailyRate; }
+    public int getCharge() { return charge; }
+    public long getCreatedAt() { return createdAt; }
+}
+
+/**
+ * 予約の変更を受け取るリスナー。
+ * op はジャーナルと同じ変更種別で、before は変更前（新規作成では null）、after は変更後（予約が消えた場合は null）。
+ * 予約処理のロックを持ったまま呼ばれるので、重い処理はしないこと。
+ */
+interface ReservationListener {
+    void reservationChanged(String op, ReservationView before, ReservationView after);
+}
+
+/**
+ * ある時点の予約状況全体のスナップショット。version はその時点のジャーナルの通番。
+ */
+class ReservationSnapshot {
+    private final long version;
+    private final List<ReservationView> reservations;
+    private final Map<String, Integer> roomCounts;
+    private final Map<String, Integer> dailyRates;
+
+    public ReservationSnapshot(long version, List<ReservationView> reservations, Map<String, Integer> roomCounts, Map<String, Integer> dailyRates) {
+        this.version = version;
+        this.reservations = reservations;
+        this.roomCounts = roomCounts;
+        this.dailyRates = dailyRates;
+    }
+
+    public long getVersion() { return version; }
+    public List<ReservationView> getReservations() { return reservations; }
+    // 部屋タイプ名ごとの部屋数
+    public Map<String, Integer> getRoomCounts() { return roomCounts; }
+    // 部屋タイプ名ごとの1泊の料金
+    public Map<String, Integer> getDailyRates() { return dailyRates; }
+}
+
 class RoomReservationProcess {
     private List<Room> rooms = new ArrayList<>();
     private Map<String, Reservation> reservations = new HashMap<>();
-    private static final String RESERVATION_FILE = "reservations.txt";
+    // 一覧表示用の索引。キーは「チェックイン日時/予約番号」で、チェックイン日順に並ぶ
+    private NavigableMap<String, Reservation> checkInIndex = new ConcurrentSkipListMap<>();
+    private Map<Integer, NavigableMap<String, Reservation>> roomIndex = new ConcurrentHashMap<>();
+    private volatile long longestStay = 0;
+    static final String RESERVATION_FILE = "reservations.txt";
+    private ReservationStore store;
+    private ReservationArchive archive;
+    private ChangeFeed feed;
+    private List<ReservationListener> listeners = new CopyOnWriteArrayList<>();
+    // 仮押さえ中のもの。キーは仮押さえの番号
+    private Map<String, RoomHold> holds = new HashMap<>();
+    private HoldTimerWheel holdWheel;
+    private int nextHoldId = 1;
+    static final long HOLD_TTL_MILLIS = 10 * 60 * 1000;
+    // ジャーナルが溜まり、次に変更を反映した後でチェックポイントを取り直すべきか
+    private boolean checkpointDue = false;
 
-    public void addRoom(Room room) { rooms.add(room); }
-    public Room assignRoom(String typeName, DateRange range) {
+    public RoomReservationProcess() { this(RESERVATION_FILE); }
+
+    /**
+     * 予約を保存するファイル名を指定して作る（同じマシンで複数のプロセスを動かすとき用）
+     */
+    public RoomReservationProcess(String reservationFile) {
+        this.store = new ReservationStore(reservationFile);
+        this.archive = new ReservationArchive(reservationFile + ".archive");
+        this.feed = new ChangeFeed(ChangeFeed.directoryOf(reservationFile));
+    }
+
+    public synchronized void addRoom(Room room) {
+        rooms.add(room);
+        roomIndex.put(room.getRoomNumber(), new ConcurrentSkipListMap<>());
+    }
+    public synchronized int getAvailableRoomCount(DateRange range) {
+        int count = 0;
+        for (Room r : rooms) {
+            if (r.isAvailable(range)) count++;
+        }
+        return count;
+    }
+    public synchronized Room assignRoom(String typeName, DateRange range) {
         for (Room r : rooms) {
             if (r.getType().getName().equals(typeName) && r.isAvailable(range)) {
                 return r;
@@ -297,95 +878,2757 @@ class RoomReservationProcess {
         }
         return null;
     }
-    public Reservation createReservation(Room room, DateRange range, String password) {
+    public synchronized Reservation createReservation(Room room, DateRange range, String password) {
+        // assignRoom から確定までの間に、他の予約が同じ部屋を取っていないか確かめる
+        if (!range.isValid() || !room.isAvailable(range)) return null;
+        room.reserve(range);
+        return book(room, range, password);
+    }
+
+    /**
+     * 指定タイプの空き部屋を ttlMillis の間だけ仮押さえするメソッド。空きがないか、1泊以上の期間でなければ null を返す。
+     * 仮押さえ中の期間は他の予約からは埋まって見える。
+     */
+    public synchronized RoomHold placeHold(String typeName, DateRange range, long ttlMillis) {
+        // 0泊の仮押さえは、同じチェックイン日の期間を上書きし、解放するときに他の予約の期間まで外してしまう
+        if (!range.isValid()) return null;
+        Room room = assignRoom(typeName, range);
+        if (room == null) return null;
+        room.reserve(range);
+        RoomHold hold = new RoomHold("H" + nextHoldId++, room, range, System.currentTimeMillis() + ttlMillis);
+        holds.put(hold.getId(), hold);
+        if (holdWheel == null) {
+            holdWheel = new HoldTimerWheel(1000, 512, this::expireHold);
+        }
+        holdWheel.schedule(hold);
+        return hold;
+    }
+
+    /**
+     * 仮押さえを予約に切り替えるメソッド。部屋はすでに押さえてあるので、空きを探し直さない。
+     * 仮押さえの期限が切れていた場合は null を返す。
+     */
+    public synchronized Reservation createReservation(RoomHold hold, String password) {
+        if (holds.remove(hold.getId()) == null) return null;
+        holdWheel.cancel(hold);
+        return book(hold.getRoom(), hold.getDateRange(), password);
+    }
+
+    /**
+     * 予約せずに仮押さえをやめるメソッド
+     */
+    public synchronized void releaseHold(RoomHold hold) {
+        if (holds.remove(hold.getId()) == null) return;
+        holdWheel.cancel(hold);
+        hold.getRoom().release(hold.getDateRange());
+    }
+
+    // タイマーホイールから、期限が切れた仮押さえについて呼ばれる
+    private synchronized void expireHold(RoomHold hold) {
+        if (holds.remove(hold.getId()) == null) return;
+        hold.getRoom().release(hold.getDateRange());
+    }
+
+    /**
+     * 部屋の期間を押さえた後で、予約をジャーナルに書いてから登録する。書き込めなければ部屋を解放して null を返す。
+     */
+    private Reservation book(Room room, DateRange range, String password) {
         SimpleDateFormat idFormat = new SimpleDateFormat("yyyyMMdd");
         String datePart = idFormat.format(range.getCheckIn());
-        String newId = datePart + "-" + room.getRoomNumber();
-        if (reservations.containsKey(newId)) return null;
-        room.reserve(range);
+        String baseId = datePart + "-" + room.getRoomNumber();
+        String newId = baseId;
+        // 日程や部屋を変更した予約が番号を使っている場合は、枝番を付けて重複を避ける
+        for (int n = 2; reservations.containsKey(newId); n++) {
+            newId = baseId + "-" + n;
+        }
         Reservation res = new Reservation(newId, room, range, password);
+        if (!journal("CREATE", ReservationStore.formatReservation(res), String.valueOf(res.getCreatedAt()))) {
+            room.release(range);
+            return null;
+        }
         reservations.put(res.getId(), res);
-        saveSingleReservationToFile(res);
+        addToIndex(res);
+        checkpointIfDue();
+        fire("CREATE", null, res);
         return res;
     }
-    public Reservation createReservationWithId(String id, Room room, DateRange range, String password) {
+    public synchronized Reservation createReservationWithId(String id, Room room, DateRange range, String password) {
         Reservation res = new Reservation(id, room, range, password);
         reservations.put(id, res);
+        addToIndex(res);
         return res;
     }
-    public Reservation getReservation(String id) {
+    public synchronized Reservation getReservation(String id) {
         return reservations.get(id);
     }
-    public boolean cancelReservation(String id, String password) {
+    public synchronized boolean cancelReservation(String id, String password) {
         Reservation res = reservations.get(id);
-        if (res == null || !res.getPassword().equals(password)) {
+        if (res == null || !res.getPassword().equals(password) || res.getStatus() != ReservationStatus.RESERVED) {
             return false;
         }
+        if (!journal("CANCEL", id)) return false;
+        ReservationView before = viewOf(res);
         res.getRoom().release(res.getDateRange());
         reservations.remove(id);
-        rewriteAllReservationsToFile();
+        removeFromIndex(res);
+        checkpointIfDue();
+        fire("CANCEL", before, null);
         return true;
     }
 
     /**
-     * 【重要】予約情報を削除し、ファイルに反映させるメソッドを追加
+     * 予約の日程や部屋タイプを、キャンセルせずにその場で変更するメソッド。
+     * 同じ部屋に泊まり続けられる場合は、新しく増える泊数だけ空きを確認する。
+     * 部屋を移る必要がある場合は、新しい部屋を確保できたときだけ元の部屋を解放するので、変更に失敗しても元の予約はそのまま残る。
+     * チェックイン済みの宿泊は、同じ部屋のままチェックアウト日だけを変えられる。
+     * newRoomTypeName が null のときは部屋タイプを変えない。変更できなければ null を返す。
      */
-    public void deleteReservation(String id) {
-        if (reservations.containsKey(id)) {
-            reservations.remove(id);
-            rewriteAllReservationsToFile();
-        }
-    }
+    public synchronized Reservation modifyReservation(String id, DateRange newRange, String newRoomTypeName) {
+        Reservation res = reservations.get(id);
+        if (res == null || res.getStatus() == ReservationStatus.CHECKED_OUT || res.getStatus() == ReservationStatus.NO_SHOW) return null;
+        if (!newRange.isValid()) return null;
 
-    private void saveSingleReservationToFile(Reservation res) {
-        try (FileWriter fw = new FileWriter(RESERVATION_FILE, true);
-             PrintWriter pw = new PrintWriter(new BufferedWriter(fw))) {
-            pw.println(String.join(",", res.getId(), String.valueOf(res.getRoom().getRoomNumber()), String.valueOf(res.getDateRange().getCheckIn().getTime()), String.valueOf(res.getDateRange().getCheckOut().getTime()), res.getRoom().getType().getName(), res.getPassword()));
-        } catch (IOException e) { e.printStackTrace(); }
-    }
-    private void rewriteAllReservationsToFile() {
-        try (FileWriter fw = new FileWriter(RESERVATION_FILE, false);
-             PrintWriter pw = new PrintWriter(new BufferedWriter(fw))) {
-            for (Reservation res : reservations.values()) {
-                pw.println(String.join(",", res.getId(), String.valueOf(res.getRoom().getRoomNumber()), String.valueOf(res.getDateRange().getCheckIn().getTime()), String.valueOf(res.getDateRange().getCheckOut().getTime()), res.getRoom().getType().getName(), res.getPassword()));
+        Room current = res.getRoom();
+        DateRange oldRange = res.getDateRange();
+        // 泊まっている客のチェックイン日を動かすと、部屋は使用中のまま宿泊がまだ始まっていないことになる
+        if (res.getStatus() == ReservationStatus.CHECKED_IN && !newRange.getCheckIn().equals(oldRange.getCheckIn())) return null;
+        String typeName = newRoomTypeName == null ? current.getType().getName() : newRoomTypeName;
+
+        Room target = null;
+        if (typeName.equals(current.getType().getName()) && isAddedNightsAvailable(current, oldRange, newRange)) {
+            target = current;
+        } else if (res.getStatus() == ReservationStatus.RESERVED) {
+            // チェックイン前なら同じタイプの別の部屋に移せる
+            for (Room r : rooms) {
+                if (r != current && r.getType().getName().equals(typeName) && r.isAvailable(newRange)) {
+                    target = r;
+                    break;
+                }
             }
-        } catch (IOException e) { e.printStackTrace(); }
-    }
-    public Room getRoomByNumber(int roomNumber) {
-        for (Room r : rooms) {
-            if (r.getRoomNumber() == roomNumber) return r;
         }
-        return null;
+        if (target == null) return null;
+
+        if (!journal("MODIFY", id, String.valueOf(target.getRoomNumber()), String.valueOf(newRange.getCheckIn().getTime()), String.valueOf(newRange.getCheckOut().getTime()))) return null;
+        ReservationView before = viewOf(res);
+        applyModification(res, target, newRange);
+        checkpointIfDue();
+        fire("MODIFY", before, res);
+        return res;
     }
-}
 
-class CheckInProcess {
-    public void setRoomInUse(Reservation res) { res.getRoom().setInUse(true); }
-}
+    /**
+     * 今の日程から新しい日程に変えたときに増える泊数だけ、部屋が空いているかを確認する
+     */
+    private static boolean isAddedNightsAvailable(Room room, DateRange oldRange, DateRange newRange) {
+        Date oldIn = oldRange.getCheckIn(), oldOut = oldRange.getCheckOut();
+        Date newIn = newRange.getCheckIn(), newOut = newRange.getCheckOut();
+        if (!newOut.after(oldIn) || !newIn.before(oldOut)) {
+            return room.isAvailable(newRange);
+        }
+        if (newIn.before(oldIn) && !room.isAvailable(new DateRange(newIn, oldIn))) return false;
+        if (newOut.after(oldOut) && !room.isAvailable(new DateRange(oldOut, newOut))) return false;
+        return true;
+    }
 
-class CheckOutProcess {
-    public int getCharge(Reservation res) { return res.getCharge(); }
-    public void completeCheckout(Reservation res) {
-        res.getRoom().setInUse(false);
+    private void applyModification(Reservation res, Room target, DateRange newRange) {
+        removeFromIndex(res);
         res.getRoom().release(res.getDateRange());
+        target.reserve(newRange);
+        res.moveTo(target, newRange);
+        addToIndex(res);
     }
-}
 
-class HotelReservationScreen {
-    private RoomReservationProcess process;
-    public HotelReservationScreen(RoomReservationProcess process) { this.process = process; }
-    public Reservation createReservation(Room room, DateRange range, String password) {
-        return process.createReservation(room, range, password);
+    /**
+     * チェックインを記録するメソッド。ジャーナルに書き込めなければ何も変えずに false を返す。
+     */
+    public synchronized boolean checkIn(Reservation res) {
+        if (!journal("CHECKIN", res.getId())) return false;
+        ReservationView before = viewOf(res);
+        res.getRoom().setInUse(true);
+        res.setStatus(ReservationStatus.CHECKED_IN);
+        checkpointIfDue();
+        fire("CHECKIN", before, res);
+        return true;
     }
-    public void cancelReservation(String id, String password) {
-        boolean result = process.cancelReservation(id, password);
-        if(!result) {
-            JOptionPane.showMessageDialog(null, "予約番号が違うか、パスワードが正しくありません。", "キャンセル失敗", JOptionPane.ERROR_MESSAGE);
-        } else {
-            JOptionPane.showMessageDialog(null, "予約番号 " + id + " の予約をキャンセルしました。", "キャンセル完了", JOptionPane.INFORMATION_MESSAGE);
-        }
+
+    /**
+     * チェックアウトを記録するメソッド。その期間の部屋の予約も解放する。ジャーナルに書き込めなければ何も変えずに false を返す。
+     */
+    public synchronized boolean checkOut(Reservation res) {
+        if (!journal("CHECKOUT", res.getId())) return false;
+        ReservationView before = viewOf(res);
+        res.getRoom().setInUse(false);
+        res.getRoom().release(res.getDateRange());
+        res.setStatus(ReservationStatus.CHECKED_OUT);
+        checkpointIfDue();
+        fire("CHECKOUT", before, res);
+        return true;
     }
-}
+
+    /**
+     * 予約状況のスナップショットを取るメソッド。
+     * ロックを持つのは各予約の内容を写し取る間だけで、集計などはスナップショットに対してロックなしで行える。
+     */
+    public synchronized ReservationSnapshot snapshot() {
+        List<ReservationView> views = new ArrayList<>(reservations.size());
+        for (Reservation res : reservations.values()) {
+            views.add(new ReservationView(res));
+        }
+        Map<String, Integer> roomCounts = new LinkedHashMap<>();
+        Map<String, Integer> dailyRates = new LinkedHashMap<>();
+        for (Room r : rooms) {
+            roomCounts.merge(r.getType().getName(), 1, Integer::sum);
+            dailyRates.put(r.getType().getName(), r.getType().getDailyRate());
+        }
+        return new ReservationSnapshot(store.getLastSeq(), views, roomCounts, dailyRates);
+    }
+
+    /**
+     * 渡された予約のうち、今もチェックイン前で、チェックイン日が cutoff より前のものをノーショーにして部屋を解放する。
+     * スナップショットを取った後にチェックイン・キャンセルされた予約や、日程を先に変更された予約は対象外になる。ノーショーにした予約番号を返す。
+     */
+    public List<String> markNoShows(List<String> ids, Date cutoff) {
+        List<String> marked = new ArrayList<>();
+        for (String id : ids) {
+            // 1件ずつロックを取り、監査中も予約処理を待たせないようにする
+            synchronized (this) {
+                Reservation res = reservations.get(id);
+                if (res == null || res.getStatus() != ReservationStatus.RESERVED) continue;
+                if (!res.getDateRange().getCheckIn().before(cutoff)) continue;
+                if (!journal("NOSHOW", id)) continue;
+                ReservationView before = viewOf(res);
+                res.getRoom().release(res.getDateRange());
+                res.setStatus(ReservationStatus.NO_SHOW);
+                checkpointIfDue();
+                fire("NOSHOW", before, res);
+                marked.add(id);
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * 宿泊が終わった予約（チェックアウト済み・ノーショー）をアーカイブに書き出してから、現在の予約から外す。
+     * アーカイブへの書き出しはロックの外でまとめて1回だけ同期し、予約から外すときは markNoShows と同じく1件ずつロックを取る。
+     * アーカイブして予約から外した予約番号を返す。
+     */
+    public List<String> archiveReservations(List<String> ids, Date businessDate) {
+        List<Reservation> finished = new ArrayList<>();
+        for (String id : ids) {
+            synchronized (this) {
+                Reservation res = reservations.get(id);
+                if (res != null && isFinished(res)) finished.add(res);
+            }
+        }
+        List<String> archived = new ArrayList<>();
+        // 宿泊が終わった予約はもう変更されないので、ロックを持たずに書き出せる
+        if (finished.isEmpty() || !archive.append(finished, businessDate)) return archived;
+        for (Reservation res : finished) {
+            synchronized (this) {
+                if (reservations.get(res.getId()) != res || !isFinished(res)) continue;
+                if (!journal("ARCHIVE", res.getId())) continue;
+                reservations.remove(res.getId());
+                removeFromIndex(res);
+                checkpointIfDue();
+                fire("ARCHIVE", viewOf(res), null);
+                archived.add(res.getId());
+            }
+        }
+        return archived;
+    }
+
+    private static boolean isFinished(Reservation res) {
+        return res.getStatus() == ReservationStatus.CHECKED_OUT || res.getStatus() == ReservationStatus.NO_SHOW;
+    }
+
+    /**
+     * 条件に合う予約をチェックイン日順に最大 pageSize 件返すメソッド。
+     * cursor には前のページの getNextCursor() を渡す（最初のページは null）。
+     * 索引を先頭から必要な分だけたどるので、全予約を一度に読み込むことはない。
+     * 予約処理をロックせずに読むため、ページの取得中に行われた変更は反映されない場合がある。
+     */
+    public ReservationPage findReservations(ReservationQuery query, String cursor, int pageSize) {
+        NavigableMap<String, Reservation> index = checkInIndex;
+        if (query.getRoomNumber() != null) {
+            index = roomIndex.get(query.getRoomNumber());
+            if (index == null) return new ReservationPage(new ArrayList<>(), null);
+        }
+
+        // from より前にチェックインしていても、最長の宿泊日数以内なら期間が重なりうる
+        String start = cursor;
+        if (query.getFrom() != null) {
+            String fromKey = indexKey(query.getFrom().getTime() - longestStay, "");
+            if (start == null || fromKey.compareTo(start) > 0) start = fromKey;
+        }
+        NavigableMap<String, Reservation> view = start == null ? index : index.tailMap(start, false);
+        if (query.getTo() != null) {
+            view = view.headMap(indexKey(query.getTo().getTime(), ""), false);
+        }
+
+        List<Reservation> items = new ArrayList<>();
+        String lastKey = null;
+        for (Map.Entry<String, Reservation> e : view.entrySet()) {
+            if (!query.matches(e.getValue())) continue;
+            if (items.size() == pageSize) {
+                return new ReservationPage(items, lastKey);
+            }
+            items.add(e.getValue());
+            lastKey = e.getKey();
+        }
+        return new ReservationPage(items, null);
+    }
+
+    /**
+     * 起動時にチェックポイントとジャーナルから予約状況を復元するメソッド
+     */
+    public synchronized void restoreReservations() {
+        // 前回ジャーナルには書いたが、変更フィードに書く前に止まった変更を先に補っておく
+        feed.catchUp(store.readJournal());
+        // 復元の最後のチェックポイントでジャーナルを切り詰める前に、補った分もフィードに同期させる
+        store.addListener(feed);
+        store.recover(this);
+    }
+
+    /**
+     * 復元用: 予約を1件登録する（ジャーナルには書き込まない）
+     */
+    void restoreReservation(String id, int roomNumber, Date checkIn, Date checkOut, String password) {
+        Room room = getRoomByNumber(roomNumber);
+        if (room == null) return;
+        DateRange range = new DateRange(checkIn, checkOut);
+        // 過去の予約で、まだチェックアウト日を過ぎていないものは、部屋の予約状況を埋める
+        // （以前の画面から入った0泊の予約は、部屋の予約状況には入れない）
+        if (range.isValid() && new Date().before(checkOut)) room.reserve(range);
+        Reservation res = createReservationWithId(id, room, range, password);
+        // 受付日時が記録されていない古いデータは、チェックイン日に受け付けたものとみなす
+        res.setCreatedAt(Math.min(checkIn.getTime(), System.currentTimeMillis()));
+    }
+
+    /**
+     * 復元用: 予約の受付日時を戻す（ジャーナルには書き込まない）
+     */
+    void restoreCreatedAt(String id, long createdAt) {
+        Reservation res = reservations.get(id);
+        if (res != null) res.setCreatedAt(createdAt);
+    }
+
+    /**
+     * 復元用: 予約を1件削除する（ジャーナルには書き込まない）
+     */
+    void restoreRemoval(String id) {
+        Reservation res = reservations.remove(id);
+        if (res != null) {
+            res.getRoom().release(res.getDateRange());
+            removeFromIndex(res);
+        }
+    }
+
+    /**
+     * 復元用: 予約の日程と部屋の変更を反映する（ジャーナルには書き込まない）
+     */
+    void restoreModification(String id, int roomNumber, Date checkIn, Date checkOut) {
+        Reservation res = reservations.get(id);
+        Room room = getRoomByNumber(roomNumber);
+        if (res == null || room == null) return;
+        removeFromIndex(res);
+        res.getRoom().release(res.getDateRange());
+        DateRange range = new DateRange(checkIn, checkOut);
+        if (range.isValid() && new Date().before(checkOut)) room.reserve(range);
+        res.moveTo(room, range);
+        addToIndex(res);
+    }
+
+    /**
+     * 復元用: 予約の状態を戻す（ジャーナルには書き込まない）
+     */
+    void restoreStatus(String id, ReservationStatus status) {
+        Reservation res = reservations.get(id);
+        if (res == null) return;
+        res.setStatus(status);
+        if (status == ReservationStatus.CHECKED_IN) {
+            res.getRoom().setInUse(true);
+        } else if (status == ReservationStatus.CHECKED_OUT || status == ReservationStatus.NO_SHOW) {
+            res.getRoom().setInUse(false);
+            res.getRoom().release(res.getDateRange());
+        }
+    }
+
+    /**
+     * 変更を1件ジャーナルに追記する。予約状況を変える前に呼び、false が返ったら何も変えずに失敗として扱うこと。
+     */
+    private boolean journal(String... fields) {
+        try {
+            if (store.append(fields)) checkpointDue = true;
+            return true;
+        } catch (IOException e) {
+            System.err.println("致命的なエラー: 予約情報のジャーナルへの書き込みに失敗したため、変更を取りやめました。");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * ジャーナルが一定件数溜まっていればチェックポイントを取り直す。変更を予約状況に反映した後で呼ぶ。
+     * ロックの中では予約状況を写し取るだけにし、ファイルへの書き出しと同期は別スレッドで行う。
+     */
+    private void checkpointIfDue() {
+        if (!checkpointDue) return;
+        checkpointDue = false;
+        store.checkpointInBackground(store.checkpointPayloads(reservations.values()));
+    }
+
+    public void addListener(ReservationListener listener) {
+        listeners.add(listener);
+    }
+
+    public ReservationArchive getArchive() { return archive; }
+    public ReservationStore getStore() { return store; }
+    public ChangeFeed getFeed() { return feed; }
+
+    /**
+     * レプリケーション用: リーダーで付いた通番のまま変更をジャーナルに書き、予約状況に反映する。
+     * 適用済みの変更は無視して true、通番に抜けがあれば何もせず false を返す。
+     */
+    public synchronized boolean applyReplicated(String payload) {
+        String[] f = payload.split(",", -1);
+        long seq = ReservationStore.seqOf(payload);
+        if (seq <= store.getLastSeq()) return true;
+        if (seq != store.getLastSeq() + 1) return false;
+        try {
+            if (store.appendRecord(seq, payload)) checkpointDue = true;
+        } catch (IOException e) {
+            System.err.println("致命的なエラー: 複製された変更をジャーナルに書き込めませんでした。");
+            e.printStackTrace();
+            return false;
+        }
+        ReservationStore.apply(this, f[1], f, 2);
+        checkpointIfDue();
+        return true;
+    }
+
+    /**
+     * レプリケーション用: 現在の予約状況をチェックポイントと同じ形式で書き出す
+     */
+    public synchronized List<String> exportSnapshot() {
+        return store.checkpointPayloads(reservations.values());
+    }
+
+    /**
+     * レプリケーション用: 予約状況をすべて捨てて、exportSnapshot で書き出した状態に置き換える
+     */
+    public synchronized void installSnapshot(List<String> payloads) {
+        reservations.clear();
+        checkInIndex.clear();
+        for (NavigableMap<String, Reservation> byRoom : roomIndex.values()) byRoom.clear();
+        for (Room r : rooms) r.clearReservations();
+        for (String payload : payloads) {
+            store.applyCheckpointRecord(this, payload);
+        }
+        store.replaceHistory(reservations.values());
+    }
+
+    // リスナーがいないときは、変更前の内容を写し取る手間を省く
+    private ReservationView viewOf(Reservation res) {
+        return listeners.isEmpty() ? null : new ReservationView(res);
+    }
+
+    private void fire(String op, ReservationView before, Reservation after) {
+        if (listeners.isEmpty()) return;
+        ReservationView afterView = after == null ? null : new ReservationView(after);
+        for (ReservationListener l : listeners) {
+            l.reservationChanged(op, before, afterView);
+        }
+    }
+
+    private void addToIndex(Reservation res) {
+        String key = indexKey(res);
+        checkInIndex.put(key, res);
+        roomIndex.computeIfAbsent(res.getRoom().getRoomNumber(), n -> new ConcurrentSkipListMap<>()).put(key, res);
+        DateRange range = res.getDateRange();
+        longestStay = Math.max(longestStay, range.getCheckOut().getTime() - range.getCheckIn().getTime());
+    }
+
+    private void removeFromIndex(Reservation res) {
+        String key = indexKey(res);
+        checkInIndex.remove(key);
+        NavigableMap<String, Reservation> byRoom = roomIndex.get(res.getRoom().getRoomNumber());
+        if (byRoom != null) byRoom.remove(key);
+    }
+
+    private static String indexKey(Reservation res) {
+        return indexKey(res.getDateRange().getCheckIn().getTime(), res.getId());
+    }
+
+    // 桁数をそろえて、文字列の順序がチェックイン日時の順序と一致するようにする
+    private static String indexKey(long checkInMillis, String id) {
+        return String.format("%015d/%s", Math.max(checkInMillis, 0), id);
+    }
+
+    public synchronized Collection<Reservation> getAllReservations() {
+        return reservations.values();
+    }
+    public synchronized Room getRoomByNumber(int roomNumber) {
+        for (Room r : rooms) {
+            if (r.getRoomNumber() == roomNumber) return r;
+        }
+        return null;
+    }
+}
+
+// --------------------------------------------------------------------------------
+// 夜間監査クラス (ノーショー処理・稼働率・売上集計・宿泊済み予約のアーカイブ)
+// --------------------------------------------------------------------------------
+
+/**
+ * 1営業日分の夜間監査の結果
+ */
+class NightAuditReport {
+    private Date businessDate;
+    private long version;
+    private Map<String, Integer> occupiedRooms;
+    private Map<String, Integer> totalRooms;
+    private long revenue;
+    private int noShows;
+    private int archived;
+
+    public NightAuditReport(Date businessDate, long version, Map<String, Integer> occupiedRooms, Map<String, Integer> totalRooms, long revenue, int noShows, int archived) {
+        this.businessDate = businessDate;
+        this.version = version;
+        this.occupiedRooms = occupiedRooms;
+        this.totalRooms = totalRooms;
+        this.revenue = revenue;
+        this.noShows = noShows;
+        this.archived = archived;
+    }
+
+    public Date getBusinessDate() { return businessDate; }
+    public long getVersion() { return version; }
+    public Map<String, Integer> getOccupiedRooms() { return occupiedRooms; }
+    public Map<String, Integer> getTotalRooms() { return totalRooms; }
+    public long getRevenue() { return revenue; }
+    public int getNoShows() { return noShows; }
+    public int getArchived() { return archived; }
+
+    public double getOccupancyRate(String typeName) {
+        int total = totalRooms.getOrDefault(typeName, 0);
+        return total == 0 ? 0 : (double) occupiedRooms.getOrDefault(typeName, 0) / total;
+    }
+}
+
+/**
+ * 毎日決まった時刻に夜間監査を行うクラス。
+ * 予約状況のスナップショットを取ってから集計するので、集計中も予約処理は止まらない。
+ * 状態を変える処理（ノーショーの確定とアーカイブ）だけは、予約ごとに改めて状態を確認してから反映する。
+ */
+class NightAuditProcess {
+    private static final String REPORT_FILE = "night_audit.txt";
+    private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+    private static final int AUDIT_HOUR = 3;
+
+    private final RoomReservationProcess proc;
+    private final ScheduledExecutorService scheduler;
+    private final List<NightAuditReport> history = new CopyOnWriteArrayList<>();
+
+    public NightAuditProcess(RoomReservationProcess proc) {
+        this.proc = proc;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "night-audit");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 毎日 AUDIT_HOUR 時に、前日を営業日とする夜間監査を実行するよう登録する
+     */
+    public void start() {
+        Calendar next = Calendar.getInstance();
+        next.set(Calendar.HOUR_OF_DAY, AUDIT_HOUR);
+        next.set(Calendar.MINUTE, 0);
+        next.set(Calendar.SECOND, 0);
+        next.set(Calendar.MILLISECOND, 0);
+        if (!next.after(Calendar.getInstance())) next.add(Calendar.DAY_OF_MONTH, 1);
+        long delay = next.getTimeInMillis() - System.currentTimeMillis();
+
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                runAudit(new Date(System.currentTimeMillis() - ONE_DAY));
+            } catch (RuntimeException e) {
+                // 例外で定期実行が止まらないようにする
+                System.err.println("エラー: 夜間監査の実行中にエラーが発生しました。");
+                e.printStackTrace();
+            }
+        }, delay, ONE_DAY, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() { scheduler.shutdownNow(); }
+
+    public List<NightAuditReport> getHistory() { return history; }
+
+    /**
+     * businessDate の営業日について夜間監査を行う。
+     * 1. チェックイン日を過ぎてもチェックインしていない予約をノーショーにして、部屋を解放する
+     * 2. その日の部屋タイプごとの稼働数を数える
+     * 3. チェックアウト済み・ノーショーの予約をアーカイブに移す
+     * 4. アーカイブに移せたチェックアウト済みの宿泊の料金を売上として合計する
+     *    （移せなかった宿泊は現在の予約に残り、次の監査で改めて計上される）
+     */
+    public NightAuditReport runAudit(Date businessDate) {
+        Date dayStart = startOfDay(businessDate);
+        Date nextDay = new Date(dayStart.getTime() + ONE_DAY);
+
+        ReservationSnapshot snapshot = proc.snapshot();
+
+        List<String> noShowCandidates = new ArrayList<>();
+        List<String> finished = new ArrayList<>();
+        Map<String, Integer> occupied = new LinkedHashMap<>();
+        for (String typeName : snapshot.getRoomCounts().keySet()) occupied.put(typeName, 0);
+        Map<String, Integer> charges = new HashMap<>();
+
+        for (ReservationView v : snapshot.getReservations()) {
+            switch (v.getStatus()) {
+                case RESERVED:
+                    if (v.getCheckIn().before(nextDay)) noShowCandidates.add(v.getId());
+                    break;
+                case CHECKED_OUT:
+                    charges.put(v.getId(), v.getCharge());
+                    finished.add(v.getId());
+                    break;
+                case NO_SHOW:
+                    finished.add(v.getId());
+                    break;
+                default:
+                    break;
+            }
+            boolean stayedThatNight = v.getStatus() == ReservationStatus.CHECKED_IN || v.getStatus() == ReservationStatus.CHECKED_OUT;
+            if (stayedThatNight && !v.getCheckIn().after(dayStart) && v.getCheckOut().after(dayStart)) {
+                occupied.merge(v.getRoomTypeName(), 1, Integer::sum);
+            }
+        }
+
+        List<String> noShows = proc.markNoShows(noShowCandidates, nextDay);
+        finished.addAll(noShows);
+        List<String> archived = proc.archiveReservations(finished, dayStart);
+        long revenue = 0;
+        for (String id : archived) {
+            revenue += charges.getOrDefault(id, 0);
+        }
+
+        NightAuditReport report = new NightAuditReport(dayStart, snapshot.getVersion(), occupied, snapshot.getRoomCounts(), revenue, noShows.size(), archived.size());
+        history.add(report);
+        saveReport(report);
+        return report;
+    }
+
+    private static Date startOfDay(Date date) {
+        Calendar c = Calendar.getInstance();
+        c.setTime(date);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTime();
+    }
+
+    private static void saveReport(NightAuditReport report) {
+        StringBuilder occupancy = new StringBuilder();
+        for (Map.Entry<String, Integer> e : report.getTotalRooms().entrySet()) {
+            if (occupancy.length() > 0) occupancy.append(";");
+            occupancy.append(e.getKey()).append("=").append(report.getOccupiedRooms().getOrDefault(e.getKey(), 0)).append("/").append(e.getValue());
+        }
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(REPORT_FILE, true), StandardCharsets.UTF_8)))) {
+            pw.println(String.join(",", new SimpleDateFormat("yyyy/MM/dd").format(report.getBusinessDate()), String.valueOf(report.getRevenue()), String.valueOf(report.getNoShows()), String.valueOf(report.getArchived()), occupancy.toString()));
+        } catch (IOException e) {
+            System.err.println("エラー: 夜間監査の結果の書き込みに失敗しました。");
+            e.printStackTrace();
+        }
+    }
+}
+
+// --------------------------------------------------------------------------------
+// 分析クラス (稼働率・ADR・RevPAR・予約の入り方)
+// --------------------------------------------------------------------------------
+
+/**
+ * ある期間・部屋タイプの集計結果
+ */
+class OccupancyStats {
+    private String period;
+    private String roomType;
+    private long roomNights;
+    private long availableRoomNights;
+    private long revenue;
+
+    public OccupancyStats(String period, String roomType, long roomNights, long availableRoomNights, long revenue) {
+        this.period = period;
+        this.roomType = roomType;
+        this.roomNights = roomNights;
+        this.availableRoomNights = availableRoomNights;
+        this.revenue = revenue;
+    }
+
+    public String getPeriod() { return period; }
+    public String getRoomType() { return roomType; }
+    public long getRoomNights() { return roomNights; }
+    public long getAvailableRoomNights() { return availableRoomNights; }
+    public long getRevenue() { return revenue; }
+    // 稼働率 = 販売した部屋数 / 販売できた部屋数
+    public double getOccupancy() { return availableRoomNights == 0 ? 0 : (double) roomNights / availableRoomNights; }
+    // ADR (平均客室単価) = 売上 / 販売した部屋数
+    public double getAdr() { return roomNights == 0 ? 0 : (double) revenue / roomNights; }
+    // RevPAR (販売可能な1室あたりの売上) = 売上 / 販売できた部屋数
+    public double getRevPar() { return availableRoomNights == 0 ? 0 : (double) revenue / availableRoomNights; }
+
+    // 画面の表とコンソールの出力で使う列
+    static final String[] COLUMNS = {"期間", "部屋タイプ", "販売室数", "販売可能室数", "稼働率", "ADR", "RevPAR", "売上"};
+
+    public String[] toRow() {
+        return new String[]{period, roomType, String.valueOf(roomNights), String.valueOf(availableRoomNights),
+                String.format("%.1f%%", getOccupancy() * 100), String.format("¥%.0f", getAdr()), String.format("¥%.0f", getRevPar()), "¥" + revenue};
+    }
+}
+
+/**
+ * 予約と宿泊実績（アーカイブ）から、日別・部屋タイプ別の販売室数と売上を集計しておくクラス。
+ * 集計結果は部屋タイプごとに「日付 → 値」の配列（列）として持つので、何年分の月別集計でも配列を順に足すだけで済む。
+ * 最初の集計は並列ストリームで行い、その後の予約の変更はリスナーとして受け取って差分だけ反映する。
+ */
+class OccupancyAnalytics implements ReservationListener {
+    private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+
+    private final Map<String, Integer> typeIndex = new LinkedHashMap<>();
+    private int[] roomsByType = new int[0];
+    private DayColumns columns = new DayColumns(0, 0, 0);
+
+    // 予約の入り方（ピックアップ）を調べるための、予約1件ごとの列
+    private int[] bookArrival = new int[16];
+    private int[] bookDay = new int[16];
+    private int[] bookNights = new int[16];
+    private int[] bookType = new int[16];
+    private int bookCount = 0;
+    private final Map<String, Integer> bookRow = new HashMap<>();
+
+    // 最初の集計が終わるまでに届いた変更
+    private final List<ReservationView[]> pending = new ArrayList<>();
+    private boolean ready = false;
+
+    /**
+     * 予約処理に登録して、現在の予約とアーカイブから集計を作る
+     */
+    public static OccupancyAnalytics attach(RoomReservationProcess proc) {
+        OccupancyAnalytics analytics = new OccupancyAnalytics();
+        ReservationSnapshot snapshot;
+        // 登録とスナップショットを同じロックの中で行い、その間の変更を取りこぼさないようにする
+        synchronized (proc) {
+            proc.addListener(analytics);
+            snapshot = proc.snapshot();
+        }
+        analytics.build(snapshot, proc.getArchive().readAll());
+        return analytics;
+    }
+
+    private void build(ReservationSnapshot snapshot, List<String[]> archived) {
+        List<Stay> stays = new ArrayList<>();
+        Set<String> liveIds = new HashSet<>();
+        synchronized (this) {
+            for (Map.Entry<String, Integer> e : snapshot.getRoomCounts().entrySet()) {
+                roomsByType = Arrays.copyOf(roomsByType, typeIndexOf(e.getKey()) + 1);
+                roomsByType[typeIndexOf(e.getKey())] = e.getValue();
+            }
+            for (ReservationView v : snapshot.getReservations()) {
+                liveIds.add(v.getId());
+                if (isCounted(v.getStatus())) stays.add(stayOf(v));
+            }
+            // アーカイブの書き込み直後に落ちた場合は同じ予約が二重に残りうるので、予約番号で重複を除く
+            Set<String> seen = new HashSet<>();
+            for (String[] f : archived) {
+                if (f.length < 8 || liveIds.contains(f[1]) || !seen.add(f[1])) continue;
+                if (!isCounted(ReservationStatus.valueOf(f[7]))) continue;
+                long checkIn = Long.parseLong(f[3]);
+                long createdAt = f.length > 8 ? Long.parseLong(f[8]) : checkIn;
+                stays.add(new Stay(f[1], typeIndexOf(f[5]), dayOf(checkIn), dayOf(Long.parseLong(f[4])), snapshot.getDailyRates().getOrDefault(f[5], 0), dayOf(createdAt)));
+            }
+        }
+
+        // 日付の範囲を決めてから、部分ごとに列を作って足し合わせる
+        int types = typeIndex.size();
+        int first = stays.parallelStream().mapToInt(s -> s.checkInDay).min().orElse(0);
+        int last = stays.parallelStream().mapToInt(s -> s.checkOutDay).max().orElse(first);
+        DayColumns built = stays.parallelStream().collect(
+                () -> new DayColumns(types, first, last - first),
+                (c, s) -> c.add(s, 1),
+                DayColumns::merge);
+
+        synchronized (this) {
+            columns = built;
+            for (Stay s : stays) addBooking(s);
+            for (ReservationView[] change : pending) apply(change[0], change[1]);
+            pending.clear();
+            ready = true;
+        }
+    }
+
+    @Override
+    public void reservationChanged(String op, ReservationView before, ReservationView after) {
+        // アーカイブは保存場所が変わるだけなので、宿泊の実績はそのまま残す
+        if (op.equals("ARCHIVE")) return;
+        synchronized (this) {
+            if (!ready) {
+                pending.add(new ReservationView[]{before, after});
+                return;
+            }
+            apply(before, after);
+        }
+    }
+
+    private void apply(ReservationView before, ReservationView after) {
+        if (before != null && isCounted(before.getStatus())) {
+            Stay s = stayOf(before);
+            columns.add(s, -1);
+            removeBooking(s.id);
+        }
+        if (after != null && isCounted(after.getStatus())) {
+            Stay s = stayOf(after);
+            columns.add(s, 1);
+            addBooking(s);
+        }
+    }
+
+    /**
+     * [from, to) の期間を月ごと・部屋タイプごとに集計する
+     */
+    public List<OccupancyStats> byMonth(Date from, Date to) {
+        return aggregate(from, to, true);
+    }
+
+    /**
+     * [from, to) の期間を日ごと・部屋タイプごとに集計する
+     */
+    public List<OccupancyStats> byDay(Date from, Date to) {
+        return aggregate(from, to, false);
+    }
+
+    private synchronized List<OccupancyStats> aggregate(Date from, Date to, boolean monthly) {
+        List<OccupancyStats> result = new ArrayList<>();
+        int firstDay = dayOf(from.getTime());
+        int lastDay = dayOf(to.getTime());
+        List<String> typeNames = new ArrayList<>(typeIndex.keySet());
+
+        int day = firstDay;
+        while (day < lastDay) {
+            LocalDate date = LocalDate.ofEpochDay(day);
+            int periodStart = day;
+            String period;
+            if (monthly) {
+                period = String.format("%04d/%02d", date.getYear(), date.getMonthValue());
+                day = Math.min(lastDay, (int) date.withDayOfMonth(1).plusMonths(1).toEpochDay());
+            } else {
+                period = String.format("%04d/%02d/%02d", date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+                day++;
+            }
+            for (int t = 0; t < typeNames.size(); t++) {
+                long nights = columns.sum(columns.roomNights, t, periodStart, day);
+                long revenue = columns.sum(columns.revenue, t, periodStart, day);
+                long available = (long) (t < roomsByType.length ? roomsByType[t] : 0) * (day - periodStart);
+                result.add(new OccupancyStats(period, typeNames.get(t), nights, available, revenue));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * [arrivalFrom, arrivalTo) にチェックインする予約について、到着の k 日前の時点で入っていた泊数を curve[k] として返す。
+     * typeName が null のときは全部屋タイプを合計する。
+     */
+    public synchronized long[] pickupCurve(Date arrivalFrom, Date arrivalTo, String typeName, int maxLeadDays) {
+        long[] curve = new long[maxLeadDays + 1];
+        int firstDay = dayOf(arrivalFrom.getTime());
+        int lastDay = dayOf(arrivalTo.getTime());
+        Integer type = typeName == null ? null : typeIndex.get(typeName);
+        if (typeName != null && type == null) return curve;
+
+        for (int i = 0; i < bookCount; i++) {
+            if (bookNights[i] == 0 || bookArrival[i] < firstDay || bookArrival[i] >= lastDay) continue;
+            if (type != null && bookType[i] != type) continue;
+            int lead = Math.max(0, Math.min(maxLeadDays, bookArrival[i] - bookDay[i]));
+            curve[lead] += bookNights[i];
+        }
+        // k 日前に入っていた予約 = 予約から到着までが k 日以上の予約の合計
+        for (int k = maxLeadDays - 1; k >= 0; k--) {
+            curve[k] += curve[k + 1];
+        }
+        return curve;
+    }
+
+    private void addBooking(Stay s) {
+        Integer row = bookRow.get(s.id);
+        if (row == null) {
+            if (bookCount == bookArrival.length) {
+                int size = bookCount * 2;
+                bookArrival = Arrays.copyOf(bookArrival, size);
+                bookDay = Arrays.copyOf(bookDay, size);
+                bookNights = Arrays.copyOf(bookNights, size);
+                bookType = Arrays.copyOf(bookType, size);
+            }
+            row = bookCount++;
+            bookRow.put(s.id, row);
+        }
+        bookArrival[row] = s.checkInDay;
+        bookDay[row] = s.bookedDay;
+        bookNights[row] = s.checkOutDay - s.checkInDay;
+        bookType[row] = s.type;
+    }
+
+    // 行は詰めずに泊数を0にしておく（行番号が変わらないので、他の予約の行をずらさずに済む）
+    private void removeBooking(String id) {
+        Integer row = bookRow.remove(id);
+        if (row != null) bookNights[row] = 0;
+    }
+
+    private Stay stayOf(ReservationView v) {
+        return new Stay(v.getId(), typeIndexOf(v.getRoomTypeName()), dayOf(v.getCheckIn().getTime()), dayOf(v.getCheckOut().getTime()), v.getDailyRate(), dayOf(v.getCreatedAt()));
+    }
+
+    private int typeIndexOf(String typeName) {
+        Integer index = typeIndex.get(typeName);
+        if (index == null) {
+            index = typeIndex.size();
+            typeIndex.put(typeName, index);
+        }
+        return index;
+    }
+
+    // 販売済みとして数える状態（ノーショーは部屋を解放しているので数えない）
+    private static boolean isCounted(ReservationStatus status) {
+        return status == ReservationStatus.RESERVED || status == ReservationStatus.CHECKED_IN || status == ReservationStatus.CHECKED_OUT;
+    }
+
+    // タイムゾーンを考慮した、1970/01/01 からの日数
+    static int dayOf(long millis) {
+        return (int) Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), ONE_DAY);
+    }
+
+    /**
+     * 集計用に、1件の宿泊を日数に直したもの
+     */
+    private static class Stay {
+        final String id;
+        final int type;
+        final int checkInDay;
+        final int checkOutDay;
+        final int dailyRate;
+        final int bookedDay;
+
+        Stay(String id, int type, int checkInDay, int checkOutDay, int dailyRate, int bookedDay) {
+            this.id = id;
+            this.type = type;
+            this.checkInDay = checkInDay;
+            this.checkOutDay = checkOutDay;
+            this.dailyRate = dailyRate;
+            this.bookedDay = bookedDay;
+        }
+    }
+
+    /**
+     * 部屋タイプごとの、日付 → 販売室数・売上 の列。baseDay が配列の添字0に当たる日。
+     */
+    private static class DayColumns {
+        int baseDay;
+        long[][] roomNights;
+        long[][] revenue;
+
+        DayColumns(int types, int baseDay, int span) {
+            this.baseDay = baseDay;
+            this.roomNights = new long[types][span];
+            this.revenue = new long[types][span];
+        }
+
+        void add(Stay s, int sign) {
+            ensure(s.type, s.checkInDay, s.checkOutDay);
+            for (int d = s.checkInDay; d < s.checkOutDay; d++) {
+                roomNights[s.type][d - baseDay] += sign;
+                revenue[s.type][d - baseDay] += (long) sign * s.dailyRate;
+            }
+        }
+
+        // 並列集計で作った、同じ形の列を足し合わせる
+        void merge(DayColumns other) {
+            for (int t = 0; t < roomNights.length; t++) {
+                for (int i = 0; i < roomNights[t].length; i++) {
+                    roomNights[t][i] += other.roomNights[t][i];
+                    revenue[t][i] += other.revenue[t][i];
+                }
+            }
+        }
+
+        long sum(long[][] column, int type, int fromDay, int toDay) {
+            if (type >= column.length) return 0;
+            long total = 0;
+            int start = Math.max(fromDay - baseDay, 0);
+            int end = Math.min(toDay - baseDay, column[type].length);
+            for (int i = start; i < end; i++) total += column[type][i];
+            return total;
+        }
+
+        // 新しい部屋タイプや、範囲外の日付が来たら配列を広げる
+        private void ensure(int type, int fromDay, int toDay) {
+            int span = roomNights.length == 0 ? 0 : roomNights[0].length;
+            int newBase = span == 0 ? fromDay : Math.min(baseDay, fromDay);
+            int newEnd = span == 0 ? toDay : Math.max(baseDay + span, toDay);
+            int types = Math.max(roomNights.length, type + 1);
+            if (newBase == baseDay && newEnd - newBase == span && types == roomNights.length) return;
+
+            long[][] nights = new long[types][newEnd - newBase];
+            long[][] money = new long[types][newEnd - newBase];
+            for (int t = 0; t < roomNights.length && span > 0; t++) {
+                System.arraycopy(roomNights[t], 0, nights[t], baseDay - newBase, span);
+                System.arraycopy(revenue[t], 0, money[t], baseDay - newBase, span);
+            }
+            baseDay = newBase;
+            roomNights = nights;
+            revenue = money;
+        }
+    }
+}
+
+// --------------------------------------------------------------------------------
+// レプリケーションクラス (リーダーからフォロワーへの変更の複製と、フェイルオーバー)
+// --------------------------------------------------------------------------------
+
+/**
+ * リーダーが直近の変更を保持しておくためのログ。フォロワーはここから続きを受け取る。
+ * 保持している範囲より古い位置から読もうとしたフォロワーや、同じ通番に別のリーダーが書いた変更を持っているフォロワーには、
+ * スナップショットを送り直す。
+ */
+class ReplicationLog implements JournalListener {
+    private final int capacity;
+    private final ArrayDeque<String> records = new ArrayDeque<>();
+    private long lastSeq;
+    // 保持している最も古い変更の1つ前の変更の任期
+    private long baseTerm;
+
+    public ReplicationLog(long lastSeq, long lastTerm, int capacity) {
+        this.lastSeq = lastSeq;
+        this.baseTerm = lastTerm;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void recordAppended(long seq, String payload) {
+        records.addLast(payload);
+        lastSeq = seq;
+        if (records.size() > capacity) baseTerm = ReservationStore.termOf(records.removeFirst());
+        notifyAll();
+    }
+
+    /**
+     * フォロワーの最後の変更（任期 term、通番 seq）が、このログの同じ通番の変更と同じリーダーが書いたものかを返す。
+     * 任期が違えば、その通番までの間にフォロワーだけが持っている変更があるので、続きからは送れない。
+     * 保持している範囲から外れている場合も false を返す。
+     */
+    public synchronized boolean matches(long term, long seq) {
+        long oldest = lastSeq - records.size() + 1;
+        if (seq < oldest - 1 || seq > lastSeq) return false;
+        if (seq == oldest - 1) return term == baseTerm;
+        Iterator<String> it = records.descendingIterator();
+        for (long n = lastSeq; n > seq; n--) it.next();
+        return ReservationStore.termOf(it.next()) == term;
+    }
+
+    /**
+     * 通番 seq より後の変更を返す。まだ無ければ最大 timeoutMillis 待ち、それでも無ければ空のリストを返す。
+     * 保持している範囲から外れている（古すぎる、またはリーダーより先に進んでいる）場合は null を返す。
+     */
+    public synchronized List<String> recordsAfter(long seq, long timeoutMillis) throws InterruptedException {
+        if (seq == lastSeq) wait(timeoutMillis);
+        long oldest = lastSeq - records.size() + 1;
+        if (seq + 1 < oldest || seq > lastSeq) return null;
+
+        List<String> result = new ArrayList<>((int) (lastSeq - seq));
+        Iterator<String> it = records.descendingIterator();
+        for (long n = lastSeq; n > seq; n--) result.add(it.next());
+        Collections.reverse(result);
+        return result;
+    }
+}
+
+/**
+ * 予約状況を複数のプロセスで持つための1ノード。
+ * リーダーは予約の変更を受け付け、ジャーナルに書いた変更を通番の順にフォロワーへ送る。
+ * フォロワーは受け取った変更を同じ通番のまま自分のジャーナルに書いてから反映し、空室数や予約の問い合わせに答える。
+ * リーダーになるたびに新しい任期を決めて、書く変更に「任期:通番」として付ける。通番が同じでも任期が違う変更は
+ * 別のリーダーが書いたものなので、フォロワーの最後の変更の任期がリーダーの同じ通番の変更と違えば、スナップショットで置き換える。
+ * ノード同士は localhost の TCP で、1行1メッセージのテキストでやり取りする。
+ *
+ *   FOLLOW <任期> <通番>  フォロワー → リーダー。以降、SNAPSHOT / ROW / END または REC <変更> が送られてくる
+ *   ACK <通番>          フォロワー → リーダー。その通番まで反映したことを知らせる
+ *   GET <予約番号>      → RES <予約の内容> / NONE
+ *   AVAIL <開始> <終了> → COUNT <空室数>（日時はミリ秒）
+ *   STATUS              → STATUS <LEADER|FOLLOWER> <通番> <任期>
+ *   PROMOTE [<任期>]     フォロワーをリーダーに昇格させる。任期を渡すと、それより新しい任期を使う
+ *   LEADER <ホスト> <ポート>  フォロワーの追従先を変える
+ */
+class ReplicaNode {
+    enum Role { LEADER, FOLLOWER }
+
+    private static final int RETAINED_RECORDS = 10000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final RoomReservationProcess proc;
+    private final int port;
+    private volatile Role role;
+    private volatile InetSocketAddress leaderAddress;
+    private volatile Socket leaderSocket;
+    private volatile boolean running = true;
+    private ServerSocket server;
+    private ReplicationLog log;
+    // 追従中の followLoop の世代。昇格や追従先の変更で増やし、古いループを止める
+    private volatile int followGeneration = 0;
+    // フォロワーごとの反映済みの通番
+    private final Map<Socket, Long> acks = new HashMap<>();
+
+    public ReplicaNode(RoomReservationProcess proc, int port) {
+        this.proc = proc;
+        this.port = port;
+    }
+
+    public Role getRole() { return role; }
+
+    public void startAsLeader() throws IOException {
+        becomeLeader(nextTerm(proc.getStore().getLastTerm()));
+        listen();
+    }
+
+    public synchronized void startAsFollower(String leaderHost, int leaderPort) throws IOException {
+        leaderAddress = new InetSocketAddress(leaderHost, leaderPort);
+        listen();
+        startFollowing();
+    }
+
+    /**
+     * フォロワーをリーダーに昇格させる。これまでに反映した通番の続きから変更を受け付ける。
+     */
+    public void promote() {
+        promote(0);
+    }
+
+    /**
+     * フォロワーをリーダーに昇格させる。任期は knownTerm、自分の最後の変更の任期、自分が前にリーダーだったときの任期のどれよりも新しいものにする。
+     */
+    public synchronized void promote(long knownTerm) {
+        if (role == Role.LEADER) return;
+        followGeneration++;
+        ReservationStore store = proc.getStore();
+        becomeLeader(nextTerm(Math.max(knownTerm, Math.max(store.getLastTerm(), store.getTerm()))));
+        closeQuietly(leaderSocket);
+    }
+
+    /**
+     * 追従するリーダーを変える（フェイルオーバーで別のノードが昇格したとき）。
+     * 自分がリーダーだった場合はフォロワーに戻り、予約の変更を受け付けるリーダーが2台にならないようにする。
+     */
+    public synchronized void followLeader(String host, int leaderPort) {
+        leaderAddress = new InetSocketAddress(host, leaderPort);
+        if (role == Role.LEADER) {
+            // フォロワーへの送信は role を見て止まる。新しいリーダーより先に進んでいた分はスナップショットで置き換わる
+            proc.getStore().removeListener(log);
+            startFollowing();
+        } else {
+            closeQuietly(leaderSocket);
+        }
+    }
+
+    /**
+     * 通番 seq までの変更を minAcks 台以上のフォロワーが反映するまで待つ。
+     * 予約の確定を利用者に伝える前に呼べば、リーダーが落ちても確定済みの予約は最新のフォロワーに残る。
+     */
+    public boolean awaitReplication(long seq, int minAcks, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (acks) {
+            while (true) {
+                int acked = 0;
+                for (long n : acks.values()) {
+                    if (n >= seq) acked++;
+                }
+                if (acked >= minAcks) return true;
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                acks.wait(wait);
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        closeQuietly(server);
+        closeQuietly(leaderSocket);
+    }
+
+    private void startFollowing() {
+        role = Role.FOLLOWER;
+        int generation = ++followGeneration;
+        startDaemon(() -> followLoop(generation), "replica-follow");
+    }
+
+    private void becomeLeader(long term) {
+        ReservationStore store = proc.getStore();
+        store.setTerm(term);
+        log = new ReplicationLog(store.getLastSeq(), store.getLastTerm(), RETAINED_RECORDS);
+        store.addListener(log);
+        role = Role.LEADER;
+    }
+
+    /**
+     * term より新しい任期を返す。上位のビットを1つ進め、下位16ビットにポート番号を入れて、
+     * 2台が同時に昇格しても同じ任期にならないようにする。
+     */
+    private long nextTerm(long term) {
+        return (((term >>> 16) + 1) << 16) | (port & 0xFFFF);
+    }
+
+    private void listen() throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        startDaemon(() -> {
+            while (running) {
+                try {
+                    Socket s = server.accept();
+                    startDaemon(() -> handle(s), "replica-conn");
+                } catch (IOException e) {
+                    if (running) System.err.println("エラー: 接続の受け付けに失敗しました。");
+                }
+            }
+        }, "replica-accept");
+    }
+
+    private void handle(Socket s) {
+        try (Socket socket = s;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cmd = line.split(" ");
+                switch (cmd[0]) {
+                    case "FOLLOW":
+                        if (role != Role.LEADER) {
+                            out.println("ERROR not leader");
+                            out.flush();
+                            return;
+                        }
+                        serveFollower(socket, in, out, Long.parseLong(cmd[1]), Long.parseLong(cmd[2]));
+                        return;
+                    case "GET":
+                        Reservation res = proc.getReservation(cmd[1]);
+                        out.println(res == null ? "NONE" : "RES " + String.join(",", res.getId(), String.valueOf(res.getRoom().getRoomNumber()), String.valueOf(res.getDateRange().getCheckIn().getTime()), String.valueOf(res.getDateRange().getCheckOut().getTime()), res.getRoom().getType().getName(), res.getStatus().name()));
+                        break;
+                    case "AVAIL":
+                        out.println("COUNT " + proc.getAvailableRoomCount(new DateRange(new Date(Long.parseLong(cmd[1])), new Date(Long.parseLong(cmd[2])))));
+                        break;
+                    case "STATUS":
+                        out.println("STATUS " + role + " " + proc.getStore().getLastSeq() + " " + proc.getStore().getLastTerm());
+                        break;
+                    case "PROMOTE":
+                        promote(cmd.length > 1 ? Long.parseLong(cmd[1]) : 0);
+                        out.println("OK");
+                        break;
+                    case "LEADER":
+                        followLeader(cmd[1], Integer.parseInt(cmd[2]));
+                        out.println("OK");
+                        break;
+                    default:
+                        out.println("ERROR unknown command");
+                }
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            // 相手が切断しただけなので何もしない
+        }
+    }
+
+    /**
+     * リーダー側: フォロワーに fromSeq の続きの変更を送り続ける。ACK は別スレッドで受け取る。
+     * フォロワーの最後の変更（任期 fromTerm、通番 fromSeq）が自分の履歴と食い違っていれば、先にスナップショットを送る。
+     */
+    private void serveFollower(Socket socket, BufferedReader in, PrintWriter out, long fromTerm, long fromSeq) throws IOException {
+        startDaemon(() -> {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("ACK ")) continue;
+                    synchronized (acks) {
+                        acks.put(socket, Long.parseLong(line.substring(4)));
+                        acks.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // 切断された
+            } finally {
+                synchronized (acks) {
+                    acks.remove(socket);
+                }
+            }
+        }, "replica-ack");
+
+        long sent = fromSeq;
+        boolean diverged = !log.matches(fromTerm, fromSeq);
+        try {
+            while (running && role == Role.LEADER && !out.checkError()) {
+                List<String> records = diverged ? null : log.recordsAfter(sent, RETRY_MILLIS);
+                diverged = false;
+                if (records == null) {
+                    // ログに残っていない位置からか、フォロワーの履歴が食い違っているので、予約状況をまるごと送ってから続きを送る
+                    List<String> snapshot = proc.exportSnapshot();
+                    sent = Long.parseLong(snapshot.get(0).split(",")[1]);
+                    out.println("SNAPSHOT " + sent);
+                    for (String payload : snapshot) out.println("ROW " + payload);
+                    out.println("END");
+                } else {
+                    for (String payload : records) out.println("REC " + payload);
+                    sent += records.size();
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * フォロワー側: リーダーに接続して変更を受け取り続ける。切断されたら接続し直す。
+     */
+    private void followLoop(int generation) {
+        while (running && generation == followGeneration) {
+            InetSocketAddress leader = leaderAddress;
+            try (Socket socket = new Socket(leader.getHostString(), leader.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+                leaderSocket = socket;
+                out.println("FOLLOW " + proc.getStore().getLastTerm() + " " + proc.getStore().getLastSeq());
+                out.flush();
+
+                String line;
+                while (generation == followGeneration && leader.equals(leaderAddress) && (line = in.readLine()) != null) {
+                    if (line.startsWith("SNAPSHOT ")) {
+                        List<String> payloads = new ArrayList<>();
+                        while (!(line = in.readLine()).equals("END")) payloads.add(line.substring(4));
+                        proc.installSnapshot(payloads);
+                    } else if (line.startsWith("REC ")) {
+                        // 通番に抜けがあれば、接続し直して続きから受け取る
+                        if (!proc.applyReplicated(line.substring(4))) break;
+                    } else {
+                        break;
+                    }
+                    out.println("ACK " + proc.getStore().getLastSeq());
+                    out.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                // リーダーに繋がらない間は待って再接続する
+            }
+            sleepQuietly(RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * 1つのノードにコマンドを送り、1行の応答を返す。繋がらなければ null を返す。
+     */
+    static String request(InetSocketAddress node, String command) {
+        try (Socket socket = new Socket(node.getHostString(), node.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            socket.setSoTimeout((int) (RETRY_MILLIS * 5));
+            out.println(command);
+            return in.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * フェイルオーバーを行う。応答したノードのうち、最後の変更の任期が最も新しく、その中で最も通番が進んでいるものを
+     * リーダーに昇格させ、残りをそのリーダーに追従させる。
+     * それも同じなら、今リーダーとして応答しているノードをそのまま使う。それ以外でリーダーと応答したノードはフォロワーに戻す。
+     * 昇格させたノードを返す（どのノードも応答しなければ null）。
+     */
+    static InetSocketAddress failover(List<InetSocketAddress> nodes) {
+        InetSocketAddress best = null;
+        long bestTerm = -1;
+        long bestSeq = -1;
+        boolean bestIsLeader = false;
+        long maxTerm = 0;
+        List<InetSocketAddress> alive = new ArrayList<>();
+        for (InetSocketAddress node : nodes) {
+            String status = request(node, "STATUS");
+            if (status == null || !status.startsWith("STATUS ")) continue;
+            alive.add(node);
+            String[] f = status.split(" ");
+            long seq = Long.parseLong(f[2]);
+            long term = f.length > 3 ? Long.parseLong(f[3]) : 0;
+            boolean leader = f[1].equals(Role.LEADER.name());
+            maxTerm = Math.max(maxTerm, term);
+            // 任期は上位のビットで新しさを比べる（下位はノードごとの番号）
+            int cmp = Long.compare(term >>> 16, bestTerm >>> 16);
+            if (best == null || cmp > 0 || (cmp == 0 && (seq > bestSeq || (seq == bestSeq && leader && !bestIsLeader)))) {
+                best = node;
+                bestTerm = term;
+                bestSeq = seq;
+                bestIsLeader = leader;
+            }
+        }
+        if (best == null) return null;
+
+        request(best, "PROMOTE " + maxTerm);
+        for (InetSocketAddress node : alive) {
+            if (!node.equals(best)) request(node, "LEADER " + best.getHostString() + " " + best.getPort());
+        }
+        return best;
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // 閉じられなくても続行する
+        }
+    }
+}
+
+// --------------------------------------------------------------------------------
+// 負荷試験クラス (合成した予約の流れを再生して、性能と整合性を確かめる)
+// --------------------------------------------------------------------------------
+
+/**
+ * 負荷試験で再生する1操作。session が同じ BOOK と CANCEL は同じ予約についての操作。
+ */
+class TraceOp {
+    enum Type { SEARCH, BOOK, CANCEL }
+
+    private final Type type;
+    private final int session;
+    private final String roomTypeName;
+    private final DateRange range;
+
+    public TraceOp(Type type, int session, String roomTypeName, DateRange range) {
+        this.type = type;
+        this.session = session;
+        this.roomTypeName = roomTypeName;
+        this.range = range;
+    }
+
+    public Type getType() { return type; }
+    public int getSession() { return session; }
+    public String getRoomTypeName() { return roomTypeName; }
+    public DateRange getRange() { return range; }
+}
+
+/**
+ * 予約の流れを合成するクラス。シードが同じなら毎回同じ操作列を作る。
+ * 予約するまでの日数（リードタイム）は平均 meanLeadDays の指数分布、泊数は1泊から始まる幾何分布で決める。
+ * 1件の予約あたり searchesPerBooking 回の空室検索が行われ、予約のうち cancelRate の割合が後でキャンセルされる。
+ */
+class BookingTraceGenerator {
+    private static final long ONE_DAY = 24L * 60 * 60 * 1000;
+    private static final int MAX_NIGHTS = 7;
+
+    private final long seed;
+    private final Date baseDate;
+    private final double meanLeadDays;
+    private final double cancelRate;
+    private final double searchesPerBooking;
+
+    public BookingTraceGenerator(long seed, Date baseDate, double meanLeadDays, double cancelRate, double searchesPerBooking) {
+        this.seed = seed;
+        this.baseDate = baseDate;
+        this.meanLeadDays = meanLeadDays;
+        this.cancelRate = cancelRate;
+        this.searchesPerBooking = searchesPerBooking;
+    }
+
+    public List<TraceOp> generate(int operations) {
+        Random rnd = new Random(seed);
+        List<TraceOp> trace = new ArrayList<>(operations);
+        // キャンセルは予約から少し後に出す。キーはキャンセルを出す位置
+        TreeMap<Integer, List<TraceOp>> cancels = new TreeMap<>();
+        int session = 0;
+
+        for (int i = 0; trace.size() < operations; i++) {
+            List<TraceOp> due = cancels.remove(i);
+            if (due != null) {
+                for (TraceOp op : due) {
+                    if (trace.size() < operations) trace.add(op);
+                }
+                continue;
+            }
+
+            DateRange range = randomStay(rnd);
+            String typeName = rnd.nextInt(5) == 0 ? "スイートルーム" : "普通の部屋";
+            if (rnd.nextDouble() < searchesPerBooking / (searchesPerBooking + 1)) {
+                trace.add(new TraceOp(TraceOp.Type.SEARCH, session++, typeName, range));
+            } else {
+                int booking = session++;
+                trace.add(new TraceOp(TraceOp.Type.BOOK, booking, typeName, range));
+                if (rnd.nextDouble() < cancelRate) {
+                    int at = i + 1 + rnd.nextInt(200);
+                    cancels.computeIfAbsent(at, k -> new ArrayList<>()).add(new TraceOp(TraceOp.Type.CANCEL, booking, typeName, range));
+                }
+            }
+        }
+        return trace;
+    }
+
+    private DateRange randomStay(Random rnd) {
+        int lead = (int) (-Math.log(1 - rnd.nextDouble()) * meanLeadDays);
+        int nights = 1;
+        while (nights < MAX_NIGHTS && rnd.nextBoolean()) nights++;
+        long checkIn = baseDate.getTime() + lead * ONE_DAY;
+        return new DateRange(new Date(checkIn), new Date(checkIn + nights * ONE_DAY));
+    }
+}
+
+/**
+ * 負荷試験の結果
+ */
+class LoadTestReport {
+    private final int operations;
+    private final int threads;
+    private final long elapsedNanos;
+    private final Map<TraceOp.Type, long[]> latencies;
+    private final int booked;
+    private final int rejected;
+    private final int cancelled;
+    private final int doubleBookings;
+    private final int wrongRejections;
+    private final List<String> inconsistencies;
+
+    public LoadTestReport(int operations, int threads, long elapsedNanos, Map<TraceOp.Type, long[]> latencies, int booked, int rejected, int cancelled, int doubleBookings, int wrongRejections, List<String> inconsistencies) {
+        this.operations = operations;
+        this.threads = threads;
+        this.elapsedNanos = elapsedNanos;
+        this.latencies = latencies;
+        this.booked = booked;
+        this.rejected = rejected;
+        this.cancelled = cancelled;
+        this.doubleBookings = doubleBookings;
+        this.wrongRejections = wrongRejections;
+        this.inconsistencies = inconsistencies;
+    }
+
+    public double getThroughput() { return operations / (elapsedNanos / 1e9); }
+    public int getDoubleBookings() { return doubleBookings; }
+    public int getWrongRejections() { return wrongRejections; }
+    public List<String> getInconsistencies() { return inconsistencies; }
+    public boolean isConsistent() { return doubleBookings == 0 && wrongRejections == 0 && inconsistencies.isEmpty(); }
+
+    /**
+     * 操作の種類ごとの、q (0〜1) 分位のレイテンシ（マイクロ秒）
+     */
+    public double getPercentileMicros(TraceOp.Type type, double q) {
+        long[] sorted = latencies.get(type);
+        if (sorted == null || sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1000.0;
+    }
+
+    public void print(PrintStream out) {
+        out.printf("操作数: %d  スレッド数: %d  所要時間: %.2f 秒  スループット: %.0f 操作/秒%n", operations, threads, elapsedNanos / 1e9, getThroughput());
+        for (TraceOp.Type type : TraceOp.Type.values()) {
+            long[] sorted = latencies.get(type);
+            out.printf("  %-6s %7d 件  p50: %9.1f µs  p99: %9.1f µs  p999: %9.1f µs%n", type, sorted == null ? 0 : sorted.length,
+                    getPercentileMicros(type, 0.50), getPercentileMicros(type, 0.99), getPercentileMicros(type, 0.999));
+        }
+        out.printf("予約成功: %d  満室で不成立: %d  キャンセル: %d%n", booked, rejected, cancelled);
+        out.println("二重予約: " + doubleBookings + " 件");
+        out.println("空室があるのに不成立: " + wrongRejections + " 件");
+        if (inconsistencies.isEmpty()) {
+            out.println("最終状態: モデル・予約処理・再読み込みした状態が一致しました。");
+        } else {
+            out.println("モデルとの不一致: " + inconsistencies.size() + " 件");
+            for (int i = 0; i < Math.min(10, inconsistencies.size()); i++) out.println("  " + inconsistencies.get(i));
+        }
+    }
+}
+
+/**
+ * 合成した操作列を複数スレッドで RoomReservationProcess に対して再生するクラス。
+ * 同じ予約の BOOK と CANCEL は同じスレッドに割り当て、スレッド内では操作列の順に実行する。
+ * 再生後に、操作の結果だけから作った部屋ごとの予約期間のモデルを使って次のことを確かめる。
+ *   - 二重予約がないこと
+ *   - 予約が頼んだ部屋タイプと日程で取られていること
+ *   - 満室で不成立になった BOOK のときに、本当にその部屋タイプの空き部屋がなかったこと
+ *   - 最終状態が、予約処理の中の状態ともファイルから復元し直した状態とも一致すること
+ */
+class LoadTestDriver {
+    private final RoomReservationProcess proc;
+    private final Supplier<RoomReservationProcess> reload;
+    // 部屋番号 → 部屋タイプ名
+    private final Map<Integer, String> roomTypes;
+    // 操作の前後で1つずつ進める時計。操作の効果は、その前後の目盛りの間のどこかで起きている
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * reload には、同じファイルから予約状況を復元した新しい予約処理を作る処理を渡す
+     */
+    public LoadTestDriver(RoomReservationProcess proc, Supplier<RoomReservationProcess> reload, Map<Integer, String> roomTypes) {
+        this.proc = proc;
+        this.reload = reload;
+        this.roomTypes = roomTypes;
+    }
+
+    public LoadTestReport run(List<TraceOp> trace, int threads) throws InterruptedException {
+        List<List<TraceOp>> perThread = new ArrayList<>();
+        for (int t = 0; t < threads; t++) perThread.add(new ArrayList<>());
+        for (TraceOp op : trace) perThread.get(op.getSession() % threads).add(op);
+
+        List<Worker> workers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Worker w = new Worker(perThread.get(t), start);
+            workers.add(w);
+            Thread thread = new Thread(w, "loadtest-" + t);
+            running.add(thread);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : running) thread.join();
+        long elapsed = System.nanoTime() - begin;
+
+        // スレッドごとの結果をまとめる
+        Map<TraceOp.Type, long[]> latencies = new EnumMap<>(TraceOp.Type.class);
+        List<Booking> bookings = new ArrayList<>();
+        List<Booking> rejections = new ArrayList<>();
+        int cancelled = 0;
+        for (TraceOp.Type type : TraceOp.Type.values()) {
+            int total = 0;
+            for (Worker w : workers) total += w.counts[type.ordinal()];
+            long[] merged = new long[total];
+            int pos = 0;
+            for (Worker w : workers) {
+                System.arraycopy(w.latencies[type.ordinal()], 0, merged, pos, w.counts[type.ordinal()]);
+                pos += w.counts[type.ordinal()];
+            }
+            Arrays.sort(merged);
+            latencies.put(type, merged);
+        }
+        for (Worker w : workers) {
+            bookings.addAll(w.bookings);
+            rejections.addAll(w.rejections);
+            cancelled += w.cancelled;
+        }
+
+        List<String> inconsistencies = new ArrayList<>();
+        Map<Integer, List<Booking>> model = buildModel(bookings, inconsistencies);
+        int wrongRejections = checkRejections(model, rejections, inconsistencies);
+        Map<String, Booking> expected = new HashMap<>();
+        for (Booking b : bookings) {
+            if (b.cancelledAt == Long.MAX_VALUE) expected.put(b.id, b);
+        }
+        // 書き出し中のチェックポイントと読み込みが重ならないように、書き終わってから読み直す
+        proc.getStore().awaitCheckpoint();
+        compare("予約処理", expected, proc, inconsistencies);
+        compare("再読み込み", expected, reload.get(), inconsistencies);
+        return new LoadTestReport(trace.size(), threads, elapsed, latencies, bookings.size(), rejections.size(), cancelled, countDoubleBookings(proc), wrongRejections, inconsistencies);
+    }
+
+    /**
+     * 成功した予約を部屋ごとにまとめたモデルを作る。頼んだものと違う部屋タイプや日程で取られた予約と、
+     * モデルの上で同時に存在しえた期間の重なりも記録する。
+     */
+    private Map<Integer, List<Booking>> buildModel(List<Booking> bookings, List<String> inconsistencies) {
+        Map<Integer, List<Booking>> model = new HashMap<>();
+        for (Booking b : bookings) {
+            DateRange requested = b.op.getRange();
+            if (!b.op.getRoomTypeName().equals(roomTypes.get(b.roomNumber)) || b.checkIn != requested.getCheckIn().getTime() || b.checkOut != requested.getCheckOut().getTime()) {
+                inconsistencies.add("モデル: 予約 " + b.id + " が頼んだのと違う部屋タイプか日程で取られています");
+            }
+            model.computeIfAbsent(b.roomNumber, n -> new ArrayList<>()).add(b);
+        }
+        for (Map.Entry<Integer, List<Booking>> e : model.entrySet()) {
+            List<Booking> stays = e.getValue();
+            for (int i = 0; i < stays.size(); i++) {
+                for (int j = i + 1; j < stays.size(); j++) {
+                    Booking x = stays.get(i), y = stays.get(j);
+                    // 確実に両方が予約済みだった時点がある場合だけ矛盾とする（キャンセルの後に取り直した予約は重なっていてよい）
+                    if (x.overlaps(y.checkIn, y.checkOut) && x.end < y.cancelFrom && y.end < x.cancelFrom) {
+                        inconsistencies.add("モデル: 部屋 " + e.getKey() + " の予約 " + x.id + " と " + y.id + " が同時に重なっています");
+                    }
+                }
+            }
+        }
+        return model;
+    }
+
+    /**
+     * 不成立になった BOOK ごとに、その操作の間ずっと空いていた同じタイプの部屋がモデルにあったかを調べる。
+     * 操作の間に取られたりキャンセルされたりした期間は埋まっていたものとみなすので、並行する操作のせいで誤検出することはない。
+     * 空き部屋があったのに断った件数を返す。
+     */
+    private int checkRejections(Map<Integer, List<Booking>> model, List<Booking> rejections, List<String> inconsistencies) {
+        int wrong = 0;
+        for (Booking r : rejections) {
+            long checkIn = r.op.getRange().getCheckIn().getTime();
+            long checkOut = r.op.getRange().getCheckOut().getTime();
+            for (Map.Entry<Integer, String> room : roomTypes.entrySet()) {
+                if (!room.getValue().equals(r.op.getRoomTypeName())) continue;
+                boolean busy = false;
+                for (Booking b : model.getOrDefault(room.getKey(), Collections.emptyList())) {
+                    if (b.overlaps(checkIn, checkOut) && b.start < r.end && b.cancelledAt > r.start) {
+                        busy = true;
+                        break;
+                    }
+                }
+                if (!busy) {
+                    wrong++;
+                    inconsistencies.add("モデル: 部屋 " + room.getKey() + " が空いていたのに " + r.op.getRoomTypeName() + " の予約が不成立になりました");
+                    break;
+                }
+            }
+        }
+        return wrong;
+    }
+
+    /**
+     * 同じ部屋で宿泊期間が重なっている予約の組の数を数える
+     */
+    static int countDoubleBookings(RoomReservationProcess proc) {
+        Map<Integer, List<ReservationView>> byRoom = new HashMap<>();
+        for (ReservationView v : proc.snapshot().getReservations()) {
+            if (v.getStatus() == ReservationStatus.RESERVED || v.getStatus() == ReservationStatus.CHECKED_IN) {
+                byRoom.computeIfAbsent(v.getRoomNumber(), n -> new ArrayList<>()).add(v);
+            }
+        }
+        int violations = 0;
+        for (List<ReservationView> stays : byRoom.values()) {
+            stays.sort(Comparator.comparing(ReservationView::getCheckIn));
+            Date latestCheckOut = null;
+            for (ReservationView v : stays) {
+                if (latestCheckOut != null && latestCheckOut.after(v.getCheckIn())) violations++;
+                if (latestCheckOut == null || v.getCheckOut().after(latestCheckOut)) latestCheckOut = v.getCheckOut();
+            }
+        }
+        return violations;
+    }
+
+    private static void compare(String label, Map<String, Booking> expected, RoomReservationProcess actual, List<String> inconsistencies) {
+        Map<String, ReservationView> actualById = new HashMap<>();
+        for (ReservationView v : actual.snapshot().getReservations()) actualById.put(v.getId(), v);
+
+        for (Booking b : expected.values()) {
+            ReservationView v = actualById.get(b.id);
+            if (v == null) {
+                inconsistencies.add(label + ": 予約 " + b.id + " が失われています");
+            } else if (v.getRoomNumber() != b.roomNumber || v.getCheckIn().getTime() != b.checkIn || v.getCheckOut().getTime() != b.checkOut) {
+                inconsistencies.add(label + ": 予約 " + b.id + " の部屋か日程が違います");
+            }
+        }
+        for (String id : actualById.keySet()) {
+            if (!expected.containsKey(id)) inconsistencies.add(label + ": 予約 " + id + " はキャンセル済みか、存在しないはずです");
+        }
+    }
+
+    /**
+     * 1件の BOOK の結果。予約できた場合は、そのときの部屋と日程を値として写しておく（予約処理の中の予約とは独立させる）。
+     * start と end は操作の前後の時計の目盛りで、cancelFrom と cancelledAt はキャンセルの前後の目盛り（キャンセルしていなければ Long.MAX_VALUE）。
+     */
+    private static class Booking {
+        final TraceOp op;
+        final long start;
+        final long end;
+        String id;
+        int roomNumber;
+        long checkIn;
+        long checkOut;
+        long cancelFrom = Long.MAX_VALUE;
+        long cancelledAt = Long.MAX_VALUE;
+
+        Booking(TraceOp op, long start, long end) {
+            this.op = op;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean overlaps(long otherCheckIn, long otherCheckOut) {
+            return checkIn < otherCheckOut && otherCheckIn < checkOut;
+        }
+    }
+
+    private class Worker implements Runnable {
+        final List<TraceOp> ops;
+        final CountDownLatch start;
+        final long[][] latencies = new long[TraceOp.Type.values().length][];
+        final int[] counts = new int[TraceOp.Type.values().length];
+        final List<Booking> bookings = new ArrayList<>();
+        final List<Booking> rejections = new ArrayList<>();
+        // セッション → まだキャンセルしていない予約
+        final Map<Integer, Booking> booked = new HashMap<>();
+        int cancelled = 0;
+
+        Worker(List<TraceOp> ops, CountDownLatch start) {
+            this.ops = ops;
+            this.start = start;
+            for (int i = 0; i < latencies.length; i++) latencies[i] = new long[ops.size()];
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (TraceOp op : ops) {
+                long t0 = System.nanoTime();
+                execute(op);
+                int type = op.getType().ordinal();
+                latencies[type][counts[type]++] = System.nanoTime() - t0;
+            }
+        }
+
+        private void execute(TraceOp op) {
+            switch (op.getType()) {
+                case SEARCH:
+                    proc.getAvailableRoomCount(op.getRange());
+                    break;
+                case BOOK:
+                    long before = clock.incrementAndGet();
+                    // 画面と同じく、仮押さえしてから確定する
+                    RoomHold hold = proc.placeHold(op.getRoomTypeName(), op.getRange(), RoomReservationProcess.HOLD_TTL_MILLIS);
+                    Reservation res = hold == null ? null : proc.createReservation(hold, "pw" + op.getSession());
+                    Booking b = new Booking(op, before, clock.incrementAndGet());
+                    if (res == null) {
+                        rejections.add(b);
+                    } else {
+                        b.id = res.getId();
+                        b.roomNumber = res.getRoom().getRoomNumber();
+                        b.checkIn = res.getDateRange().getCheckIn().getTime();
+                        b.checkOut = res.getDateRange().getCheckOut().getTime();
+                        bookings.add(b);
+                        booked.put(op.getSession(), b);
+                    }
+                    break;
+                case CANCEL:
+                    Booking target = booked.get(op.getSession());
+                    if (target == null) break;
+                    long from = clock.incrementAndGet();
+                    if (proc.cancelReservation(target.id, "pw" + op.getSession())) {
+                        target.cancelFrom = from;
+                        target.cancelledAt = clock.incrementAndGet();
+                        booked.remove(op.getSession());
+                        cancelled++;
+                    }
+                    break;
+            }
+        }
+    }
+}
+
+// --------------------------------------------------------------------------------
+// 永続化クラス (チェックポイント + ジャーナル)
+// --------------------------------------------------------------------------------
+
+/**
+ * ジャーナルに追記された変更を受け取るリスナー。ストアのロックを持ったまま呼ばれる。
+ */
+interface JournalListener {
+    void recordAppended(long seq, String payload);
+
+    /**
+     * ジャーナルから通番 seq までのレコードを取り除く直前に呼ばれる。取り除いた変更を後から補えなくなるので、
+     * 受け取った変更を自分でも残しているリスナーはここでディスクに同期する。例外を投げるとジャーナルは取り除かれない。
+     */
+    default void journalTrimming(long seq) throws IOException {}
+
+    /**
+     * ジャーナルの履歴がスナップショットでまるごと置き換えられる直前に呼ばれる。seq は置き換えた後の通番で、
+     * それまでに受け取った通番より小さいこともある。
+     */
+    default void journalReset(long seq) {}
+}
+
+/**
+ * 予約情報の永続化を担当するクラス。
+ * reservations.txt を全予約のチェックポイントとし、それ以降の変更は reservations.txt.journal に1件ずつ追記する。
+ * 各レコードは「バイト長:CRC32:本文」の形式で書き込み、書き込み途中で途切れた行を読み込み時に検出する。
+ * チェックポイントは一時ファイルに書き出してからアトミックに差し替えるため、書き込み中に落ちても既存のファイルは壊れない。
+ */
+class ReservationStore {
+    // この件数だけジャーナルが溜まったらチェックポイントを取り直す（復元時に読み直す量の上限）
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    private final Path checkpointFile;
+    private final Path journalFile;
+    private final Path tempFile;
+    private final Path journalTempFile;
+    private long lastSeq = 0;
+    // 最後の変更を書いたリーダーの任期と、このノードがこれから書く変更に付ける任期（レプリケーションで使う）
+    private long lastTerm = 0;
+    private long term = 0;
+    private int journalRecords = 0;
+    // 別スレッドで書き出すチェックポイント。書き出し中は次のチェックポイントを頼まない
+    private ExecutorService checkpointer;
+    private boolean checkpointPending = false;
+    // 今の予約状況でまるごと置き換えるたびに増やし、それより前に頼まれた書き出しを取りやめさせる
+    private volatile long checkpointEpoch = 0;
+    private final Object checkpointLock = new Object();
+    private final List<JournalListener> listeners = new CopyOnWriteArrayList<>();
+
+    public ReservationStore(String fileName) {
+        this.checkpointFile = Paths.get(fileName);
+        this.journalFile = Paths.get(fileName + ".journal");
+        this.tempFile = Paths.get(fileName + ".tmp");
+        this.journalTempFile = Paths.get(fileName + ".journal.tmp");
+    }
+
+    public synchronized long getLastSeq() { return lastSeq; }
+    public synchronized long getLastTerm() { return lastTerm; }
+
+    /**
+     * これから追記する変更に付ける任期を設定する。リーダーになったときに、前のリーダーと重ならない任期を渡す。
+     */
+    public synchronized void setTerm(long term) { this.term = term; }
+    public synchronized long getTerm() { return term; }
+
+    public void addListener(JournalListener listener) { listeners.add(listener); }
+    public void removeListener(JournalListener listener) { listeners.remove(listener); }
+
+    /**
+     * チェックポイントを読み込み、その後のジャーナルを先頭から適用して予約状況を復元する。
+     * ジャーナルの途中で壊れたレコードが見つかった場合はそこで適用を打ち切り、復元できた状態でチェックポイントを取り直す。
+     */
+    public synchronized void recover(RoomReservationProcess proc) {
+        boolean needsCheckpoint = false;
+
+        for (String line : readLines(checkpointFile)) {
+            String payload = decode(line);
+            if (payload == null) {
+                // チェックサムのない旧形式の行は、そのまま読み込んで新形式に移行する
+                String[] data = line.split(",");
+                if (data.length >= 6 && applyLegacy(proc, data)) {
+                    needsCheckpoint = true;
+                } else {
+                    System.err.println("警告: " + checkpointFile + " に壊れたレコードがあったため読み飛ばしました。");
+                }
+                continue;
+            }
+            applyCheckpointRecord(proc, payload);
+        }
+
+        for (String line : readLines(journalFile)) {
+            String payload = decode(line);
+            if (payload == null) {
+                System.err.println("警告: " + journalFile + " の末尾が途中で途切れていたため、それ以降の変更は破棄しました。");
+                needsCheckpoint = true;
+                break;
+            }
+            String[] f = payload.split(",", -1);
+            long seq = seqOf(payload);
+            // チェックポイントに含まれている変更は適用済みなので飛ばす
+            if (seq <= lastSeq) continue;
+            if (seq != lastSeq + 1) {
+                System.err.println("警告: " + journalFile + " の通番が " + lastSeq + " の次から " + seq + " に飛んでいたため、それ以降の変更は破棄しました。");
+                needsCheckpoint = true;
+                break;
+            }
+            apply(proc, f[1], f, 2);
+            lastSeq = seq;
+            lastTerm = termOf(payload);
+            journalRecords++;
+        }
+        term = Math.max(term, lastTerm);
+
+        if (needsCheckpoint) {
+            checkpoint(proc.getAllReservations());
+        }
+    }
+
+    /**
+     * ジャーナルの本文を古い順に返す。途中で壊れたレコードがあれば、その手前までを返す。
+     */
+    public synchronized List<String> readJournal() {
+        List<String> payloads = new ArrayList<>();
+        for (String line : readLines(journalFile)) {
+            String payload = decode(line);
+            if (payload == null) break;
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    /**
+     * 変更を1件ジャーナルに追記してディスクに同期する。
+     * チェックポイントを取り直すべき件数に達したら true を返す。書き込めなかった場合は通番を進めずに IOException を投げる。
+     */
+    public synchronized boolean append(String... fields) throws IOException {
+        return appendRecord(lastSeq + 1, position(term, lastSeq + 1) + "," + String.join(",", fields));
+    }
+
+    /**
+     * 通番がすでに決まっている変更（リーダーから複製された変更など）をそのまま追記する。
+     * payload は「通番,変更種別,内容」の形式で、レプリケーションで任期が付いている場合は通番の欄が「任期:通番」になる。
+     */
+    public synchronized boolean appendRecord(long seq, String payload) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journalFile.toFile(), true)) {
+            long size = out.getChannel().size();
+            try {
+                out.write((encode(payload) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            } catch (IOException e) {
+                // 途中まで書いた分が残ると次のレコードとつながり、復元がそこで止まってしまうので切り詰めておく
+                try {
+                    out.getChannel().truncate(size);
+                } catch (IOException ignored) {
+                    // 切り詰められなくても、元の書き込みの失敗を伝える
+                }
+                throw e;
+            }
+        }
+        lastSeq = seq;
+        lastTerm = termOf(payload);
+        journalRecords++;
+        for (JournalListener l : listeners) {
+            l.recordAppended(seq, payload);
+        }
+        return journalRecords >= CHECKPOINT_INTERVAL && !checkpointPending;
+    }
+
+    /**
+     * レプリケーション用: スナップショットで置き換えた予約状況でチェックポイントを取り直す。
+     * 先にリスナーへ履歴が置き換わったことを知らせておき、チェックポイントの後で落ちても知らせ損なわないようにする。
+     */
+    public synchronized void replaceHistory(Collection<Reservation> reservations) {
+        for (JournalListener l : listeners) {
+            l.journalReset(lastSeq);
+        }
+        checkpoint(reservations);
+    }
+
+    /**
+     * 全予約を一時ファイルに書き出し、アトミックなリネームでチェックポイントを差し替えてからジャーナルを空にする。
+     * 復元やスナップショットの取り込みのように、今の予約状況でそのまま置き換えるときに使う。
+     */
+    public synchronized void checkpoint(Collection<Reservation> reservations) {
+        // 書き出し中の別スレッドのチェックポイントは、これより古いので差し替えさせない
+        long epoch = ++checkpointEpoch;
+        if (writeCheckpoint(checkpointPayloads(reservations), epoch)) {
+            trimJournal(lastSeq);
+        }
+    }
+
+    /**
+     * checkpointPayloads で写し取った予約状況を、別スレッドでチェックポイントに書き出す。
+     * 予約処理のロックを持ったまま全予約を書き出して同期することがないように、予約の変更の後はこちらを使う。
+     * 書き終えたら、チェックポイントの通番までのレコードだけをジャーナルから取り除く。
+     */
+    public synchronized void checkpointInBackground(List<String> payloads) {
+        if (checkpointPending) return;
+        checkpointPending = true;
+        if (checkpointer == null) {
+            checkpointer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        long epoch = checkpointEpoch;
+        long seq = Long.parseLong(payloads.get(0).split(",")[1]);
+        checkpointer.execute(() -> {
+            try {
+                if (writeCheckpoint(payloads, epoch)) {
+                    synchronized (this) {
+                        if (epoch == checkpointEpoch) trimJournal(seq);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    checkpointPending = false;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * 別スレッドで書き出し中のチェックポイントがあれば、書き終わるまで待つ
+     */
+    public synchronized void awaitCheckpoint() throws InterruptedException {
+        while (checkpointPending) wait();
+    }
+
+    /**
+     * チェックポイントの本文を一時ファイルに書いて同期し、アトミックなリネームで差し替える。差し替えられたら true を返す。
+     * ストアのロックは取らないので、書き出している間もジャーナルへの追記は続けられる。
+     * epoch は書き出しを頼んだときの checkpointEpoch で、差し替える直前にも変わっていなければ差し替える。
+     */
+    private boolean writeCheckpoint(List<String> payloads, long epoch) {
+        synchronized (checkpointLock) {
+            // 同期的なチェックポイントは epoch を増やしてからこのロックを取るので、ここで見れば新しいチェックポイントを古いもので上書きしない
+            if (epoch != checkpointEpoch) return false;
+            try (FileOutputStream out = new FileOutputStream(tempFile.toFile());
+                 Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                for (String payload : payloads) {
+                    w.write(encode(payload) + "\n");
+                }
+                w.flush();
+                out.getFD().sync();
+            } catch (IOException e) {
+                System.err.println("致命的なエラー: チェックポイントの書き込みに失敗しました。");
+                e.printStackTrace();
+                return false;
+            }
+
+            try {
+                if (epoch != checkpointEpoch) return false;
+                Files.move(tempFile, checkpointFile, StandardCopyOption.ATOMIC_MOVE);
+                // リネームがディスクに残る前にジャーナルを空にすると、落ちたときに古いチェックポイントと空のジャーナルだけが残る
+                syncDirectory(checkpointFile);
+                return true;
+            } catch (AtomicMoveNotSupportedException e) {
+                System.err.println("致命的なエラー: " + checkpointFile + " の置き場所はアトミックなリネームに対応していないため、チェックポイントを差し替えられません。ジャーナルはそのまま残します。");
+                e.printStackTrace();
+            } catch (IOException e) {
+                System.err.println("致命的なエラー: チェックポイントの差し替えに失敗しました。ジャーナルはそのまま残します。");
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 通番 seq までのレコードをジャーナルから取り除く。チェックポイントを書いている間に追記されたレコードは残す。
+     * 取り除く途中で落ちても、残ったレコードは復元時に通番で読み飛ばされる。
+     */
+    private synchronized void trimJournal(long seq) {
+        try {
+            for (JournalListener l : listeners) {
+                l.journalTrimming(seq);
+            }
+            if (seq >= lastSeq) {
+                new FileOutputStream(journalFile.toFile(), false).close();
+                journalRecords = 0;
+                return;
+            }
+            List<String> rest = new ArrayList<>();
+            for (String line : readLines(journalFile)) {
+                String payload = decode(line);
+                if (payload != null && seqOf(payload) > seq) rest.add(line);
+            }
+            try (FileOutputStream out = new FileOutputStream(journalTempFile.toFile());
+                 Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                for (String line : rest) {
+                    w.write(line + "\n");
+                }
+                w.flush();
+                out.getFD().sync();
+            }
+            Files.move(journalTempFile, journalFile, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(journalFile);
+            journalRecords = rest.size();
+        } catch (IOException e) {
+            System.err.println("エラー: ジャーナルを切り詰められませんでした。次のチェックポイントでやり直します。");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * チェックポイントの本文を並べたものを返す。先頭は通番と最後の変更の任期を表す H レコードで、続いて予約1件ごとの R レコード。
+     */
+    public synchronized List<String> checkpointPayloads(Collection<Reservation> reservations) {
+        List<String> payloads = new ArrayList<>(reservations.size() + 1);
+        payloads.add("H," + lastSeq + "," + lastTerm);
+        for (Reservation res : reservations) {
+            payloads.add("R," + formatReservation(res) + "," + res.getStatus().name() + "," + res.getCreatedAt());
+        }
+        return payloads;
+    }
+
+    /**
+     * チェックポイントのレコードを1件、予約状況に適用する
+     */
+    synchronized void applyCheckpointRecord(RoomReservationProcess proc, String payload) {
+        String[] f = payload.split(",", -1);
+        if (f[0].equals("H")) {
+            lastSeq = Long.parseLong(f[1]);
+            // 任期のない旧形式のチェックポイントは任期 0 とみなす
+            lastTerm = f.length > 2 ? Long.parseLong(f[2]) : 0;
+            term = Math.max(term, lastTerm);
+        } else if (f[0].equals("R")) {
+            apply(proc, "CREATE", Arrays.copyOf(f, 7), 1);
+            if (f.length > 7) proc.restoreStatus(f[1], ReservationStatus.valueOf(f[7]));
+            if (f.length > 8) proc.restoreCreatedAt(f[1], Long.parseLong(f[8]));
+        }
+    }
+
+    static String formatReservation(Reservation res) {
+        return String.join(",", res.getId(), String.valueOf(res.getRoom().getRoomNumber()), String.valueOf(res.getDateRange().getCheckIn().getTime()), String.valueOf(res.getDateRange().getCheckOut().getTime()), res.getRoom().getType().getName(), res.getPassword());
+    }
+
+    /**
+     * 1件の変更を予約状況に適用する。f[from] 以降がその変更の内容。
+     */
+    static void apply(RoomReservationProcess proc, String op, String[] f, int from) {
+        switch (op) {
+            case "CREATE":
+                proc.restoreReservation(f[from], Integer.parseInt(f[from + 1]), new Date(Long.parseLong(f[from + 2])), new Date(Long.parseLong(f[from + 3])), f[from + 5]);
+                if (f.length > from + 6) proc.restoreCreatedAt(f[from], Long.parseLong(f[from + 6]));
+                break;
+            case "CANCEL":
+            case "ARCHIVE":
+                proc.restoreRemoval(f[from]);
+                break;
+            case "MODIFY":
+                proc.restoreModification(f[from], Integer.parseInt(f[from + 1]), new Date(Long.parseLong(f[from + 2])), new Date(Long.parseLong(f[from + 3])));
+                break;
+            case "CHECKIN":
+                proc.restoreStatus(f[from], ReservationStatus.CHECKED_IN);
+                break;
+            case "CHECKOUT":
+                proc.restoreStatus(f[from], ReservationStatus.CHECKED_OUT);
+                break;
+            case "NOSHOW":
+                proc.restoreStatus(f[from], ReservationStatus.NO_SHOW);
+                break;
+            default:
+                System.err.println("警告: 不明な変更種別 " + op + " を読み飛ばしました。");
+        }
+    }
+
+    private static boolean applyLegacy(RoomReservationProcess proc, String[] data) {
+        try {
+            proc.restoreReservation(data[0], Integer.parseInt(data[1]), new Date(Long.parseLong(data[2])), new Date(Long.parseLong(data[3])), data[5]);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * file を置いているディレクトリをディスクに同期し、直前のリネームやファイルの作成を確定させる。
+     * Windows ではディレクトリを開けないため何もしない（NTFS はメタデータの変更をジャーナルで守っている）。
+     */
+    static void syncDirectory(Path file) throws IOException {
+        if (System.getProperty("os.name").startsWith("Windows")) return;
+        try (FileChannel dir = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+    }
+
+    static long seqOf(String payload) {
+        String position = payload.substring(0, payload.indexOf(','));
+        return Long.parseLong(position.substring(position.indexOf(':') + 1));
+    }
+
+    /**
+     * 変更を書いたリーダーの任期を返す。任期の付いていない変更は 0。
+     */
+    static long termOf(String payload) {
+        String position = payload.substring(0, payload.indexOf(','));
+        int colon = position.indexOf(':');
+        return colon < 0 ? 0 : Long.parseLong(position.substring(0, colon));
+    }
+
+    // 任期 0（レプリケーションを使わないとき）は、これまでどおり通番だけを書く
+    private static String position(long term, long seq) {
+        return term == 0 ? String.valueOf(seq) : term + ":" + seq;
+    }
+
+    static String encode(String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return bytes.length + ":" + String.format("%08x", crc.getValue()) + ":" + payload;
+    }
+
+    /**
+     * レコードの長さとチェックサムを検証し、正しければ本文を返す。壊れていれば null を返す。
+     */
+    static String decode(String line) {
+        int p1 = line.indexOf(':');
+        int p2 = line.indexOf(':', p1 + 1);
+        if (p1 <= 0 || p2 < 0) return null;
+        try {
+            int length = Integer.parseInt(line.substring(0, p1));
+            long checksum = Long.parseLong(line.substring(p1 + 1, p2), 16);
+            String payload = line.substring(p2 + 1);
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length != length) return null;
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            return crc.getValue() == checksum ? payload : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static List<String> readLines(Path file) {
+        List<String> lines = new ArrayList<>();
+        if (!Files.exists(file)) return lines;
+        // 不正なバイト列は置換文字として読み込み、チェックサムの検証で弾く
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.toFile()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+        } catch (IOException e) {
+            System.err.println("エラー: " + file + " の読み込み中にエラーが発生しました。");
+        }
+        return lines;
+    }
+}
+
+/**
+ * 宿泊が終わった予約を保存しておくファイル。現在の予約のファイルとは分けて、追記だけを行う。
+ * レコードの形式は ReservationStore と同じ「バイト長:CRC32:本文」で、本文は「アーカイブした営業日,予約の内容,状態,受付日時」。
+ */
+class ReservationArchive {
+    private final Path archiveFile;
+
+    public ReservationArchive(String fileName) {
+        this.archiveFile = Paths.get(fileName);
+    }
+
+    /**
+     * 予約をまとめて追記してディスクに同期する。書き込めなかった場合は false を返す。
+     */
+    public synchronized boolean append(List<Reservation> finished, Date businessDate) {
+        try (FileOutputStream out = new FileOutputStream(archiveFile.toFile(), true)) {
+            StringBuilder sb = new StringBuilder();
+            for (Reservation res : finished) {
+                sb.append(ReservationStore.encode(businessDate.getTime() + "," + ReservationStore.formatReservation(res) + "," + res.getStatus().name() + "," + res.getCreatedAt())).append("\n");
+            }
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            System.err.println("致命的なエラー: 予約のアーカイブへの書き込みに失敗しました。");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * アーカイブの全レコードを、カンマで区切った本文の配列として返す。壊れたレコードは読み飛ばす。
+     */
+    public synchronized List<String[]> readAll() {
+        List<String[]> records = new ArrayList<>();
+        if (!Files.exists(archiveFile)) return records;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(archiveFile.toFile()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String payload = ReservationStore.decode(line);
+                if (payload != null) records.add(payload.split(",", -1));
+            }
+        } catch (IOException e) {
+            System.err.println("エラー: " + archiveFile + " の読み込み中にエラーが発生しました。");
+        }
+        return records;
+    }
+}
+
+// --------------------------------------------------------------------------------
+// 変更フィードクラス (下流のシステム向けに、予約の変更を通番の順に書き出す)
+// --------------------------------------------------------------------------------
+
+/**
+ * 予約の変更を、ジャーナルと同じ通番を付けて reservations.txt.feed/ 以下のセグメントファイルに追記していくクラス。
+ * ジャーナルと違ってチェックポイントで消されないので、請求・清掃・チャネル管理などの下流のシステムは
+ * 前回読んだ通番の続きから読むだけで、全予約を読み直さずに変更を追いかけられる。
+ * セグメントは SEGMENT_RECORDS 件ごとに切り替え、ファイル名はそのセグメントの先頭の通番にする。
+ * レコードの形式はジャーナルと同じ「バイト長:CRC32:本文」だが、予約のパスワードは書き出さない。
+ * レプリケーションでスナップショットに置き換えられたときは、それまでのどの通番よりも大きい通番で「通番,RESET,ジャーナルの通番」を書き、
+ * 通番が戻ったり、同じ通番に別の変更が入ったりしたことを読み手に知らせる。フィードの通番が戻らないように、
+ * それ以降の変更にはジャーナルの通番に RESET で決めた差を足した通番を付ける。
+ */
+class ChangeFeed implements JournalListener {
+    static final int SEGMENT_RECORDS = 10000;
+    private static final String OFFSET_FILE = "offset";
+
+    private final Path dir;
+    private long lastSeq = 0;
+    private int segmentRecords = 0;
+    private FileOutputStream segment;
+    private Path segmentFile;
+    // 新しいセグメントを作ってから、まだディレクトリを同期していない
+    private boolean segmentCreated = false;
+    // 書き込みに失敗したら、通番が飛ばないようにそれ以降は書かず、次の起動時にジャーナルから補う
+    private boolean failed = false;
+    // フィードの通番とジャーナルの通番の差。RESET を書くたびに決め直す
+    private long offset = 0;
+
+    public ChangeFeed(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            Path offsetFile = dir.resolve(OFFSET_FILE);
+            if (Files.exists(offsetFile)) offset = Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.UTF_8).trim());
+            List<Path> segments = listSegments(dir);
+            if (!segments.isEmpty()) recoverSegment(segments.get(segments.size() - 1));
+        } catch (IOException e) {
+            System.err.println("致命的なエラー: 変更フィード " + dir + " を開けませんでした。");
+            e.printStackTrace();
+        }
+    }
+
+    static Path directoryOf(String reservationFile) {
+        return Paths.get(reservationFile + ".feed");
+    }
+
+    public synchronized long getLastSeq() { return lastSeq; }
+
+    public Path getDirectory() { return dir; }
+
+    /**
+     * 起動時に、ジャーナルには書いたがフィードに書く前に止まった変更を補う。payloads はジャーナルの本文を古い順に並べたもの。
+     */
+    public synchronized void catchUp(List<String> payloads) {
+        for (String payload : payloads) {
+            long seq = ReservationStore.seqOf(payload);
+            if (seq + offset > lastSeq) recordAppended(seq, payload);
+        }
+    }
+
+    @Override
+    public synchronized void recordAppended(long seq, String payload) {
+        if (failed) return;
+        long feedSeq = seq + offset;
+        if (feedSeq <= lastSeq) {
+            // RESET なしに通番が戻ると、読み手はこの変更を読み飛ばしてしまう
+            failed = true;
+            System.err.println("致命的なエラー: 変更フィードの通番が " + lastSeq + " から " + feedSeq + " に戻りました。以降の変更は次の起動時にジャーナルから書き出します。");
+            return;
+        }
+        String[] f = toFeedRecord(payload).split(",", 2);
+        write(feedSeq, feedSeq + "," + f[1]);
+    }
+
+    @Override
+    public synchronized void journalReset(long seq) {
+        if (failed) return;
+        long feedSeq = Math.max(lastSeq, seq + offset) + 1;
+        if (!write(feedSeq, feedSeq + ",RESET," + seq)) return;
+        offset = feedSeq - seq;
+        // 最後のセグメントから RESET が外れても差がわかるように残しておく
+        try {
+            Path temp = dir.resolve(OFFSET_FILE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                out.write(String.valueOf(offset).getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            Files.move(temp, dir.resolve(OFFSET_FILE), StandardCopyOption.ATOMIC_MOVE);
+            ReservationStore.syncDirectory(temp);
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("致命的なエラー: 変更フィードの通番の差を保存できませんでした。以降の変更は次の起動時にジャーナルから書き出します。");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 1件をセグメントに追記する。書けなければ false を返し、以降は書かない。
+     */
+    private boolean write(long seq, String record) {
+        try {
+            if (segment == null || segmentRecords >= SEGMENT_RECORDS) {
+                if (segment != null) {
+                    // 書き終えたセグメントは、この後 journalTrimming で同期できなくなるので閉じる前に同期する
+                    segment.getFD().sync();
+                    segment.close();
+                }
+                segmentFile = dir.resolve(String.format("%020d.log", seq));
+                segment = new FileOutputStream(segmentFile.toFile(), true);
+                segmentCreated = true;
+                segmentRecords = 0;
+            }
+            segment.write((ReservationStore.encode(record) + "\n").getBytes(StandardCharsets.UTF_8));
+            segmentRecords++;
+            lastSeq = seq;
+            return true;
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("致命的なエラー: 変更フィードへの書き込みに失敗しました。以降の変更は次の起動時にジャーナルから書き出します。");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * フィードは1件ごとには同期せず、ジャーナルが切り詰められる前にここでまとめて同期する。
+     * それまでに落ちた分は、起動時に残っているジャーナルから catchUp で補われる。
+     */
+    @Override
+    public synchronized void journalTrimming(long seq) throws IOException {
+        // 書き込みに失敗した変更があるときは、起動時に補えるようにジャーナルを残させる
+        if (failed) throw new IOException("変更フィードは通番 " + lastSeq + " の後の書き込みに失敗しています");
+        if (segment == null) return;
+        segment.getFD().sync();
+        if (segmentCreated) {
+            ReservationStore.syncDirectory(segmentFile);
+            segmentCreated = false;
+        }
+    }
+
+    /**
+     * 最後のセグメントを読み、書き込み途中で途切れた末尾を切り詰めてから追記できるように開く
+     */
+    private void recoverSegment(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int valid = 0;
+        long seq = firstSeqOf(file) - 1;
+        int count = 0;
+        for (int start = 0, i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            String payload = ReservationStore.decode(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+            if (payload == null) break;
+            seq = ReservationStore.seqOf(payload);
+            String[] f = payload.split(",", -1);
+            if (f[1].equals("RESET")) offset = seq - Long.parseLong(f[2]);
+            count++;
+            valid = i + 1;
+            start = i + 1;
+        }
+        if (valid < bytes.length) {
+            System.err.println("警告: " + file + " の末尾が途中で途切れていたため切り詰めました。");
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        lastSeq = seq;
+        segmentRecords = count;
+        segmentFile = file;
+        segment = new FileOutputStream(file.toFile(), true);
+    }
+
+    /**
+     * ジャーナルの本文をフィードのレコードにする。予約の作成ではパスワードを取り除き
+     * 「通番,CREATE,予約番号,部屋番号,チェックイン,チェックアウト,部屋タイプ,受付日時」にする。
+     * それ以外の変更はジャーナルと同じ内容のまま。
+     */
+    static String toFeedRecord(String payload) {
+        String[] f = payload.split(",", -1);
+        // レプリケーションの任期はフィードには出さない
+        f[0] = String.valueOf(ReservationStore.seqOf(payload));
+        if (!f[1].equals("CREATE") || f.length < 8) return String.join(",", f);
+        List<String> fields = new ArrayList<>(Arrays.asList(f));
+        fields.remove(7);
+        return String.join(",", fields);
+    }
+
+    static long firstSeqOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    /**
+     * セグメントファイルを先頭の通番の順に返す
+     */
+    static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path p : stream) segments.add(p);
+        }
+        // 桁数をそろえたファイル名なので、名前の順が通番の順になる
+        Collections.sort(segments);
+        return segments;
+    }
+}
+
+/**
+ * 変更フィードを指定した通番の続きから読むクラス。セグメントファイルだけを見るので、別のプロセスからでも読める。
+ * 読み手が poll を呼んだ分だけファイルから読み進めるため、読み手が遅くても書き手が待たされたり、変更がメモリに溜まったりしない。
+ * 返した変更の通番が前回の位置から連続していないときは、その間の変更がフィードに残っていない（フィードより前の変更）ので、
+ * 全予約を取り直してから続きを読むこと。「通番,RESET,ジャーナルの通番」を受け取ったときも、レプリケーションで予約状況がまるごと置き換えられたので、
+ * それまでに読んだ変更を捨てて全予約を取り直す。
+ */
+class ChangeFeedReader implements Closeable {
+    private static final long POLL_MILLIS = 100;
+
+    private final Path dir;
+    private long position;
+    private Path current;
+    private RandomAccessFile file;
+    // file から buf に読み込んだところまでの位置
+    private long offset;
+    private byte[] buf = new byte[64 * 1024];
+    private int bufPos = 0;
+    private int bufLen = 0;
+
+    public ChangeFeedReader(Path dir, long afterSeq) {
+        this.dir = dir;
+        this.position = afterSeq;
+    }
+
+    /**
+     * 読み終えた最後の通番。次に読み始めるときはこの値を渡す。
+     */
+    public long getPosition() { return position; }
+
+    /**
+     * 続きの変更を最大 maxRecords 件返す。まだ無ければ最大 timeoutMillis 待ち、それでも無ければ空のリストを返す。
+     */
+    public List<String> poll(int maxRecords, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            List<String> records = read(maxRecords);
+            long rest = deadline - System.currentTimeMillis();
+            if (!records.isEmpty() || rest <= 0) return records;
+            Thread.sleep(Math.min(POLL_MILLIS, rest));
+        }
+    }
+
+    private List<String> read(int maxRecords) throws IOException {
+        List<String> records = new ArrayList<>();
+        if (file == null && !open()) return records;
+        while (records.size() < maxRecords) {
+            String line = nextLine();
+            if (line == null) {
+                // 書き手は次のセグメントを作る前に今のセグメントを書き終えているので、
+                // 次のセグメントがあれば今のセグメントを読み切ってから移る
+                Path next = nextSegment();
+                if (next == null) break;
+                line = nextLine();
+                if (line == null) {
+                    switchTo(next);
+                    continue;
+                }
+            }
+            String payload = ReservationStore.decode(line);
+            if (payload == null) {
+                System.err.println("警告: " + current + " に壊れたレコードがあったため読み飛ばしました。");
+                continue;
+            }
+            long seq = ReservationStore.seqOf(payload);
+            if (seq <= position) continue;
+            records.add(payload);
+            position = seq;
+        }
+        return records;
+    }
+
+    /**
+     * position の続きが入っているセグメントを開く。まだセグメントが無ければ false を返す。
+     */
+    private boolean open() throws IOException {
+        List<Path> segments = ChangeFeed.listSegments(dir);
+        if (segments.isEmpty()) return false;
+        Path start = segments.get(0);
+        for (Path p : segments) {
+            if (ChangeFeed.firstSeqOf(p) <= position + 1) start = p;
+        }
+        switchTo(start);
+        return true;
+    }
+
+    private Path nextSegment() throws IOException {
+        long currentSeq = ChangeFeed.firstSeqOf(current);
+        for (Path p : ChangeFeed.listSegments(dir)) {
+            if (ChangeFeed.firstSeqOf(p) > currentSeq) return p;
+        }
+        return null;
+    }
+
+    private void switchTo(Path segment) throws IOException {
+        close();
+        file = new RandomAccessFile(segment.toFile(), "r");
+        current = segment;
+        offset = 0;
+        bufPos = 0;
+        bufLen = 0;
+    }
+
+    /**
+     * 改行まで書き終わっている次の1行を返す。まだ無ければ null を返す。
+     */
+    private String nextLine() throws IOException {
+        while (true) {
+            for (int i = bufPos; i < bufLen; i++) {
+                if (buf[i] != '\n') continue;
+                String line = new String(buf, bufPos, i - bufPos, StandardCharsets.UTF_8);
+                bufPos = i + 1;
+                if (!line.isEmpty()) return line;
+            }
+            int pending = bufLen - bufPos;
+            // 書き手が再起動時に途切れた末尾を切り詰めた場合は、途切れた行の先頭から読み直す
+            if (file.length() < offset) {
+                offset -= pending;
+                pending = 0;
+            }
+            System.arraycopy(buf, bufPos, buf, 0, pending);
+            bufPos = 0;
+            bufLen = pending;
+            if (bufLen == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            file.seek(offset);
+            int n = file.read(buf, bufLen, buf.length - bufLen);
+            if (n <= 0) return null;
+            bufLen += n;
+            offset += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) file.close();
+        file = null;
+    }
+}
+
+class CheckInProcess {
+    private RoomReservationProcess process;
+    public CheckInProcess(RoomReservationProcess process) { this.process = process; }
+    public boolean setRoomInUse(Reservation res) { return process.checkIn(res); }
+}
+
+class CheckOutProcess {
+    private RoomReservationProcess process;
+    public CheckOutProcess(RoomReservationProcess process) { this.process = process; }
+    public int getCharge(Reservation res) { return res.getCharge(); }
+    public boolean completeCheckout(Reservation res) {
+        return process.checkOut(res);
+    }
+}
+
+class HotelReservationScreen {
+    private RoomReservationProcess process;
+    public HotelReservationScreen(RoomReservationProcess process) { this.process = process; }
+    public RoomHold selectRoom(String typeName, DateRange range) {
+        return process.placeHold(typeName, range, RoomReservationProcess.HOLD_TTL_MILLIS);
+    }
+    public Reservation createReservation(RoomHold hold, String password) {
+        return process.createReservation(hold, password);
+    }
+    public void releaseHold(RoomHold hold) {
+        process.releaseHold(hold);
+    }
+    public Reservation createReservation(Room room, DateRange range, String password) {
+        return process.createReservation(room, range, password);
+    }
+    public void cancelReservation(String id, String password) {
+        boolean result = process.cancelReservation(id, password);
+        if(!result) {
+            JOptionPane.showMessageDialog(null, "予約番号が違うか、パスワードが正しくありません。", "キャンセル失敗", JOptionPane.ERROR_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(null, "予約番号 " + id + " の予約をキャンセルしました。", "キャンセル完了", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+    public Reservation modifyReservation(String id, String password, DateRange newRange, String newRoomTypeName) {
+        Reservation res = process.getReservation(id);
+        if (res == null || !res.getPassword().equals(password)) return null;
+        return process.modifyReservation(id, newRange, newRoomTypeName);
+    }
+}
 
 class RoomManagementScreen {
     private CheckInProcess checkIn;
@@ -394,14 +3637,304 @@ class RoomManagementScreen {
         this.checkIn = in;
         this.checkOut = out;
     }
-    public void doCheckIn(Reservation res) { checkIn.setRoomInUse(res); }
-    public void doCheckOut(Reservation res) {
-        checkOut.completeCheckout(res);
+    public boolean doCheckIn(Reservation res) { return checkIn.setRoomInUse(res); }
+    public boolean doCheckOut(Reservation res) {
+        return checkOut.completeCheckout(res);
     }
 }
 
 public class HotelSystem {
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd");
+
+    /**
+     * 引数なしなら GUI を起動する。レプリケーションを試すときは、同じマシンで複数のプロセスを次のように起動する。
+     *   java HotelSystem leader 7001 leader.txt
+     *   java HotelSystem follower 7002 localhost:7001 follower1.txt
+     *   java HotelSystem failover localhost:7002 localhost:7003
+     * 負荷試験は次のように起動する（引数はすべて省略可）。
+     *   java HotelSystem loadtest <シード> <部屋数> <操作数> <スレッド数> <キャンセル率> <予約1件あたりの検索回数> <平均リードタイム日数>
+     * 月別の稼働率・ADR・RevPAR・売上は次のように表示する（期間の既定は今年の1年間）。
+     *   java HotelSystem analytics <予約ファイル> <開始日> <終了日>
+     * 集計の構築と問い合わせにかかる時間は、架空の宿泊実績で次のように測る。
+     *   java HotelSystem analytics bench <宿泊件数> <年数> <シード>
+     * 予約の変更フィードを、指定した通番の続きから読み続けるには次のように起動する。
+     *   java HotelSystem feed <予約ファイル> <通番>
+     */
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new HotelGUI());
+        if (args.length == 0) {
+            SwingUtilities.invokeLater(() -> new HotelGUI());
+            return;
+        }
+        try {
+            switch (args[0]) {
+                case "leader":
+                case "follower":
+                    runReplicaNode(args);
+                    break;
+                case "loadtest":
+                    runLoadTest(args);
+                    break;
+                case "feed":
+                    runFeedReader(args);
+                    break;
+                case "analytics":
+                    if (args.length > 1 && args[1].equals("bench")) {
+                        runAnalyticsBenchmark(args);
+                    } else {
+                        runAnalytics(args);
+                    }
+                    break;
+                case "failover":
+                    List<InetSocketAddress> nodes = new ArrayList<>();
+                    for (int i = 1; i < args.length; i++) nodes.add(parseAddress(args[i]));
+                    InetSocketAddress leader = ReplicaNode.failover(nodes);
+                    System.out.println(leader == null ? "応答したノードがありませんでした。" : "新しいリーダー: " + leader.getHostString() + ":" + leader.getPort());
+                    break;
+                default:
+                    System.out.println("使い方: HotelSystem [leader <port> [file] | follower <port> <host:port> [file] | failover <host:port>... | loadtest [seed] [rooms] [ops] [threads] [cancelRate] [searchesPerBooking] [meanLeadDays] | feed [file] [seq] | analytics [file] [from] [to] | analytics bench [stays] [years] [seed]]");
+            }
+        } catch (IOException e) {
+            System.err.println("致命的なエラー: ノードを起動できませんでした。");
+            e.printStackTrace();
+        } catch (ParseException e) {
+            System.out.println("エラー: 日付は yyyy/MM/dd の形式で入力してください。");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 予約ファイルとアーカイブから、期間内の月別の稼働率・ADR・RevPAR・売上を表示する
+     */
+    private static void runAnalytics(String[] args) throws ParseException {
+        String file = args.length > 1 ? args[1] : RoomReservationProcess.RESERVATION_FILE;
+        Calendar start = Calendar.getInstance();
+        start.set(start.get(Calendar.YEAR), Calendar.JANUARY, 1, 0, 0, 0);
+        Calendar end = (Calendar) start.clone();
+        end.add(Calendar.YEAR, 1);
+        Date from = args.length > 2 ? DATE_FORMAT.parse(args[2]) : start.getTime();
+        Date to = args.length > 3 ? DATE_FORMAT.parse(args[3]) : end.getTime();
+
+        OccupancyAnalytics analytics = OccupancyAnalytics.attach(createProcess(file));
+        System.out.println(String.join("\t", OccupancyStats.COLUMNS));
+        for (OccupancyStats stats : analytics.byMonth(from, to)) {
+            System.out.println(String.join("\t", stats.toRow()));
+        }
+    }
+
+    /**
+     * 架空の宿泊実績を一時ファイルのアーカイブに書き、集計の構築と問い合わせにかかる時間を測って表示する
+     */
+    private static void runAnalyticsBenchmark(String[] args) {
+        int stayCount = args.length > 2 ? Integer.parseInt(args[2]) : 30000;
+        int years = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+        final int roomCount = 100;
+        final long oneDay = 24L * 60 * 60 * 1000;
+
+        String file;
+        try {
+            file = Files.createTempDirectory("hotel-analytics").resolve("reservations.txt").toString();
+        } catch (IOException e) {
+            System.err.println("エラー: 一時ディレクトリを作れませんでした。");
+            e.printStackTrace();
+            return;
+        }
+        RoomReservationProcess proc = new RoomReservationProcess(file);
+        List<Room> rooms = new ArrayList<>();
+        // 負荷試験と同じく2割をスイートルームにする
+        for (int i = 0; i < roomCount; i++) {
+            Room room = new Room(1000 + i, i % 5 == 4 ? new SuiteRoom() : new StandardRoom());
+            rooms.add(room);
+            proc.addRoom(room);
+        }
+        proc.restoreReservations();
+
+        Calendar today = Calendar.getInstance();
+        today.set(Calendar.HOUR_OF_DAY, 0);
+        today.set(Calendar.MINUTE, 0);
+        today.set(Calendar.SECOND, 0);
+        today.set(Calendar.MILLISECOND, 0);
+        long todayMillis = today.getTimeInMillis();
+        int spanDays = years * 365;
+
+        // 直近 years 年の間に泊まり終えた宿泊を作る。予約は到着の平均30日前に入ったものとする
+        Random random = new Random(seed);
+        List<Reservation> history = new ArrayList<>(stayCount);
+        for (int i = 0; i < stayCount; i++) {
+            long checkIn = todayMillis - (long) (5 + random.nextInt(spanDays - 5)) * oneDay;
+            int nights = 1 + random.nextInt(4);
+            Reservation res = new Reservation("B" + i, rooms.get(random.nextInt(roomCount)), new DateRange(new Date(checkIn), new Date(checkIn + nights * oneDay)), "pw");
+            res.setStatus(ReservationStatus.CHECKED_OUT);
+            res.setCreatedAt(checkIn - (long) (-Math.log(1 - random.nextDouble()) * 30 * oneDay));
+            history.add(res);
+        }
+        proc.getArchive().append(history, new Date(todayMillis));
+
+        Date from = new Date(todayMillis - spanDays * oneDay);
+        Date to = new Date(todayMillis);
+        Date lastYear = new Date(todayMillis - 365 * oneDay);
+        long t0 = System.nanoTime();
+        OccupancyAnalytics analytics = OccupancyAnalytics.attach(proc);
+        long t1 = System.nanoTime();
+        List<OccupancyStats> monthly = analytics.byMonth(from, to);
+        long t2 = System.nanoTime();
+        analytics.byMonth(from, to);
+        long t3 = System.nanoTime();
+        List<OccupancyStats> daily = analytics.byDay(lastYear, to);
+        long t4 = System.nanoTime();
+        analytics.pickupCurve(lastYear, to, null, 90);
+        long t5 = System.nanoTime();
+
+        System.out.println("集計の計測: 宿泊 " + stayCount + " 件、" + years + " 年分、部屋数 " + roomCount + "、シード " + seed);
+        System.out.printf("  集計の構築（アーカイブの読み込みを含む）: %8.1f ms%n", (t1 - t0) / 1e6);
+        System.out.printf("  月別集計 %d 行（初回）:                    %8.1f ms%n", monthly.size(), (t2 - t1) / 1e6);
+        System.out.printf("  月別集計（2回目）:                         %8.1f ms%n", (t3 - t2) / 1e6);
+        System.out.printf("  直近1年の日別集計 %d 行:                  %8.1f ms%n", daily.size(), (t4 - t3) / 1e6);
+        System.out.printf("  直近1年の到着のピックアップカーブ (90日):  %8.1f ms%n", (t5 - t4) / 1e6);
+    }
+
+    /**
+     * 一時ディレクトリのファイルを使って負荷試験を行い、結果を表示する
+     */
+    private static void runLoadTest(String[] args) throws IOException, InterruptedException {
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        int roomCount = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int operations = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+        double cancelRate = args.length > 5 ? Double.parseDouble(args[5]) : 0.15;
+        double searchesPerBooking = args.length > 6 ? Double.parseDouble(args[6]) : 4;
+        double meanLeadDays = args.length > 7 ? Double.parseDouble(args[7]) : 30;
+
+        String file = Files.createTempDirectory("hotel-loadtest").resolve("reservations.txt").toString();
+        // 2割をスイートルームにする
+        Map<Integer, RoomType> layout = new LinkedHashMap<>();
+        Map<Integer, String> roomTypes = new LinkedHashMap<>();
+        for (int i = 0; i < roomCount; i++) {
+            layout.put(1000 + i, i % 5 == 4 ? new SuiteRoom() : new StandardRoom());
+            roomTypes.put(1000 + i, layout.get(1000 + i).getName());
+        }
+        Supplier<RoomReservationProcess> open = () -> {
+            RoomReservationProcess proc = new RoomReservationProcess(file);
+            for (Map.Entry<Integer, RoomType> e : layout.entrySet()) {
+                proc.addRoom(new Room(e.getKey(), e.getValue()));
+            }
+            proc.restoreReservations();
+            return proc;
+        };
+
+        Calendar tomorrow = Calendar.getInstance();
+        tomorrow.add(Calendar.DAY_OF_MONTH, 1);
+        tomorrow.set(Calendar.HOUR_OF_DAY, 0);
+        tomorrow.set(Calendar.MINUTE, 0);
+        tomorrow.set(Calendar.SECOND, 0);
+        tomorrow.set(Calendar.MILLISECOND, 0);
+        List<TraceOp> trace = new BookingTraceGenerator(seed, tomorrow.getTime(), meanLeadDays, cancelRate, searchesPerBooking).generate(operations);
+
+        System.out.println("負荷試験: シード " + seed + "、部屋数 " + roomCount + "、予約ファイル " + file);
+        LoadTestReport report = new LoadTestDriver(open.get(), open, roomTypes).run(trace, threads);
+        report.print(System.out);
+    }
+
+    /**
+     * 変更フィードを通番 seq の続きから読み、届いた変更を1行ずつ表示し続ける
+     */
+    private static void runFeedReader(String[] args) throws IOException, InterruptedException {
+        String file = args.length > 1 ? args[1] : RoomReservationProcess.RESERVATION_FILE;
+        long seq = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        try (ChangeFeedReader reader = new ChangeFeedReader(ChangeFeed.directoryOf(file), seq)) {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (String record : reader.poll(100, 1000)) {
+                    System.out.println(record);
+                }
+            }
+        }
+    }
+
+    /**
+     * 部屋を登録し、ファイルから予約状況を復元した予約処理を作る
+     */
+    static RoomReservationProcess createProcess(String reservationFile) {
+        RoomReservationProcess proc = new RoomReservationProcess(reservationFile);
+        proc.addRoom(new Room(101, new StandardRoom()));
+        proc.addRoom(new Room(102, new StandardRoom()));
+        proc.addRoom(new Room(201, new SuiteRoom()));
+        proc.restoreReservations();
+        return proc;
+    }
+
+    /**
+     * レプリケーションのノードをコンソールから操作する。予約の変更はリーダーのときだけ受け付ける。
+     */
+    private static void runReplicaNode(String[] args) throws IOException {
+        int port = Integer.parseInt(args[1]);
+        boolean leader = args[0].equals("leader");
+        String file = args.length > (leader ? 2 : 3) ? args[leader ? 2 : 3] : RoomReservationProcess.RESERVATION_FILE;
+        RoomReservationProcess proc = createProcess(file);
+        ReplicaNode node = new ReplicaNode(proc, port);
+        if (leader) {
+            node.startAsLeader();
+        } else {
+            InetSocketAddress address = parseAddress(args[2]);
+            node.startAsFollower(address.getHostString(), address.getPort());
+        }
+
+        System.out.println("コマンド: book <1:普通の部屋|2:スイートルーム> <チェックイン日> <チェックアウト日> <パスワード> / cancel <予約番号> <パスワード> / checkin <予約番号> / checkout <予約番号> / get <予約番号> / avail <チェックイン日> <チェックアウト日> / status / quit");
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String[] cmd = scanner.nextLine().trim().split("\\s+");
+            try {
+                if (cmd[0].equals("quit")) break;
+                if (cmd[0].equals("status")) {
+                    System.out.println(node.getRole() + " 通番: " + proc.getStore().getLastSeq());
+                } else if (cmd[0].equals("get")) {
+                    Reservation res = proc.getReservation(cmd[1]);
+                    System.out.println(res == null ? "予約が見つかりません。" : res.getId() + " 部屋 " + res.getRoom().getRoomNumber() + " " + res.getStatus().getLabel());
+                } else if (cmd[0].equals("avail")) {
+                    System.out.println("空き部屋数: " + proc.getAvailableRoomCount(new DateRange(DATE_FORMAT.parse(cmd[1]), DATE_FORMAT.parse(cmd[2]))));
+                } else if (node.getRole() != ReplicaNode.Role.LEADER) {
+                    System.out.println("フォロワーでは予約の変更はできません。");
+                } else if (cmd[0].equals("book")) {
+                    DateRange stay = new DateRange(DATE_FORMAT.parse(cmd[2]), DATE_FORMAT.parse(cmd[3]));
+                    Room room = proc.assignRoom(cmd[1].equals("2") ? "スイートルーム" : "普通の部屋", stay);
+                    Reservation res = room == null ? null : proc.createReservation(room, stay, cmd[4]);
+                    if (res == null) {
+                        System.out.println("空室がありません。");
+                    } else if (node.awaitReplication(proc.getStore().getLastSeq(), 1, 2000)) {
+                        // フォロワーに届いてから確定を伝える
+                        System.out.println("予約番号: " + res.getId());
+                    } else if (proc.cancelReservation(res.getId(), cmd[4])) {
+                        // フォロワーに届いていない予約は、リーダーが落ちると失われるので確定させない
+                        System.out.println("フォロワーへの複製を確認できなかったため、予約を取り消しました。しばらくしてからやり直してください。");
+                    } else {
+                        System.out.println("予約番号: " + res.getId() + " はフォロワーへの複製を確認できておらず、リーダーが落ちると失われるおそれがあります。");
+                    }
+                } else if (cmd[0].equals("cancel")) {
+                    System.out.println(proc.cancelReservation(cmd[1], cmd[2]) ? "キャンセルしました。" : "キャンセルできませんでした。");
+                } else if (cmd[0].equals("checkin") || cmd[0].equals("checkout")) {
+                    Reservation res = proc.getReservation(cmd[1]);
+                    if (res == null) {
+                        System.out.println("予約が見つかりません。");
+                    } else if (cmd[0].equals("checkin")) {
+                        System.out.println(proc.checkIn(res) ? "チェックインしました。" : "チェックインできませんでした。");
+                    } else {
+                        System.out.println(proc.checkOut(res) ? "チェックアウトしました。請求額: ¥" + res.getCharge() : "チェックアウトできませんでした。");
+                    }
+                } else {
+                    System.out.println("不明なコマンドです。");
+                }
+            } catch (ParseException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("エラー: 入力が正しくありません。日付は yyyy/MM/dd の形式で入力してください。");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        node.stop();
+    }
+
+    private static InetSocketAddress parseAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
     }
 }